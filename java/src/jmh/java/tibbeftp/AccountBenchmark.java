@@ -0,0 +1,81 @@
+package tibbeftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Login lookup against accounts.txt files of different sizes. Each benchmark runs in its own
+ * fork since the parsed accounts are static.
+ *
+ * @author jesper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountBenchmark {
+    @Param({"10", "10000", "200000"})
+    public int accounts;
+
+    private File mFtpHome;
+    private File mAccountsFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mFtpHome = Files.createTempDirectory("tibbeftp-accounts").toFile();
+        mAccountsFile = new File(mFtpHome, "accounts.txt");
+        PrintWriter out = new PrintWriter(mAccountsFile);
+        for (int i = 0; i < accounts; i++) {
+            out.println("user" + i + " pass" + i + " " + new File(mFtpHome, "home").getAbsolutePath());
+        }
+        out.close();
+        Main.setFtpHome(mFtpHome);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mAccountsFile.delete();
+        new File(mFtpHome, "home").delete();
+        mFtpHome.delete();
+    }
+
+    @Benchmark
+    public Account firstUser() {
+        return Account.getAccount("user0", "pass0");
+    }
+
+    @Benchmark
+    public Account lastUser() {
+        return Account.getAccount("user" + (accounts - 1), "pass" + (accounts - 1));
+    }
+
+    @Benchmark
+    public Account wrongPassword() {
+        return Account.getAccount("user0", "nope");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Account concurrentLogins() {
+        return Account.getAccount("user0", "pass0");
+    }
+}
@@ -0,0 +1,117 @@
+package tibbeftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading control lines and running them through ConnectionHandler.processLine(), what a session
+ * does for every command. The session is not logged in, so commands that need a login are
+ * recognized and refused with 530 without touching files or the network. Replies go to a
+ * socket that discards them.
+ *
+ * @author jesper
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandParsingBenchmark {
+    /**
+     * A typical session, sent in one go like a pipelining client does. Without PASS, which would
+     * look up the account, and QUIT, which would close the session.
+     */
+    private static final String SESSION = "USER anonymous\r\nSYST\r\nFEAT\r\nPWD\r\nTYPE I\r\n"
+            + "CWD /pub/some/dir\r\nPASV\r\nLIST\r\nSIZE file.bin\r\nMDTM file.bin\r\nREST 0\r\nPASV\r\n"
+            + "RETR file.bin\r\nPASV\r\nSTOR upload.bin\r\nnoop\r\nBOGUS command\r\n";
+
+    private byte[] mSession;
+    private ConnectionHandler mHandler;
+
+    /**
+     * A control connection that is never connected, replies are thrown away
+     */
+    private static class DiscardSocket extends Socket {
+        private final OutputStream mOut = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) {
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        mSession = SESSION.getBytes();
+        mHandler = new ConnectionHandler(new MyFTP(), new DiscardSocket());
+    }
+
+    @Benchmark
+    public int readLines(Blackhole bh) throws IOException {
+        ControlLineReader reader = new ControlLineReader(new ByteArrayInputStream(mSession));
+        int lines = 0;
+        int len;
+        while ((len = reader.readLine()) != -1) {
+            bh.consume(reader.getBuffer()[reader.getLineStart()]);
+            lines += len > 0 ? 1 : 0;
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public int processLines() throws IOException {
+        ControlLineReader reader = new ControlLineReader(new ByteArrayInputStream(mSession));
+        int lines = 0;
+        int len;
+        while ((len = reader.readLine()) != -1) {
+            mHandler.processLine(reader.getBuffer(), reader.getLineStart(), len);
+            lines++;
+        }
+        mHandler.flushReplies();
+        return lines;
+    }
+}
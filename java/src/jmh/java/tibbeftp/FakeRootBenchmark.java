@@ -0,0 +1,61 @@
+package tibbeftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Path resolution inside the user's root, done for every command with a path argument
+ *
+ * @author jesper
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FakeRootBenchmark {
+    @Param({"file.txt", "/a/b/c/file.txt", "../../etc/passwd", "a/../b/./c"})
+    public String path;
+
+    private File mRoot;
+    private FakeRoot mFakeRoot;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mRoot = Files.createTempDirectory("tibbeftp-root").toFile();
+        new File(mRoot, "a/b/c").mkdirs();
+        new File(mRoot, "b/c").mkdirs();
+        mFakeRoot = new FakeRoot(mRoot);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        new File(mRoot, "a/b/c").delete();
+        new File(mRoot, "a/b").delete();
+        new File(mRoot, "a").delete();
+        new File(mRoot, "b/c").delete();
+        new File(mRoot, "b").delete();
+        mRoot.delete();
+    }
+
+    @Benchmark
+    public File getFile() {
+        return mFakeRoot.getFile(path);
+    }
+}
@@ -0,0 +1,84 @@
+package tibbeftp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding of LIST lines, one per directory entry
+ *
+ * @author jesper
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingBenchmark {
+    @Param({"100", "10000"})
+    public int files;
+
+    private File mDir;
+    private File[] mFiles;
+    private Date mRecent;
+    private Date mOld;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mDir = Files.createTempDirectory("tibbeftp-listing").toFile();
+        for (int i = 0; i < files; i++) {
+            FileOutputStream out = new FileOutputStream(new File(mDir, "file_" + i + ".dat"));
+            out.write(new byte[i % 100]);
+            out.close();
+        }
+        mFiles = mDir.listFiles();
+        mRecent = new Date();
+        mOld = new Date(System.currentTimeMillis() - 400L * 24 * 3600000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File f : mFiles) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    /**
+     * What list() does per entry when the listing is not cached: stat and format
+     */
+    @Benchmark
+    public void listLines(Blackhole bh) throws IOException {
+        for (File f : mFiles) {
+            bh.consume(ConnectionHandler.getFileInfoLineForList(f).getBytes("UTF8"));
+        }
+    }
+
+    @Benchmark
+    public void dateRecent(Blackhole bh) {
+        bh.consume(Utils.dateToFTPTimeString(mRecent));
+    }
+
+    @Benchmark
+    public void dateOld(Blackhole bh) {
+        bh.consume(Utils.dateToFTPTimeString(mOld));
+    }
+}
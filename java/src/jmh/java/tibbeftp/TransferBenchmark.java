@@ -0,0 +1,112 @@
+package tibbeftp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RETR and STOR through a server running in the benchmark JVM, over loopback sockets.
+ * Binary mode takes the FileChannel path, ASCII mode the stream copy loops.
+ *
+ * @author jesper
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransferBenchmark {
+    @Param({"I", "A"})
+    public String type;
+
+    @Param({"65536", "16777216"})
+    public int size;
+
+    private static int sPort = 0;
+    private static File sFtpHome;
+
+    private LoadClient mClient;
+    private byte[] mUpload;
+
+    /**
+     * One server per fork, shared by all trials
+     */
+    private static synchronized int startServer() throws Exception {
+        if (sPort != 0) {
+            return sPort;
+        }
+        sFtpHome = Files.createTempDirectory("tibbeftp-transfer").toFile();
+        new File(sFtpHome, "home/bench").mkdirs();
+        PrintWriter accounts = new PrintWriter(new File(sFtpHome, "accounts.txt"));
+        accounts.println("bench bench");
+        accounts.close();
+        Main.setFtpHome(sFtpHome);
+
+        MyFTP.FTP_PORT = 0; // any free port, also for passive connections
+        MyFTP.PASV_RANGE_MIN = 0;
+        MyFTP.PASV_RANGE_MAX = 0;
+        final MyFTP server = new MyFTP();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.run();
+            }
+        }, "BenchmarkServer");
+        t.setDaemon(true);
+        t.start();
+        sPort = server.awaitListening(10000);
+        if (sPort == 0) {
+            throw new IOException("Benchmark server did not start");
+        }
+        return sPort;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int port = startServer();
+        // ASCII content for both modes, so that text mode transfers are meaningful
+        mUpload = new byte[size];
+        Random r = new Random(size);
+        for (int i = 0; i < size; i++) {
+            mUpload[i] = i % 80 == 79 ? (byte) '\n' : (byte) ('a' + r.nextInt(26));
+        }
+        FileOutputStream out = new FileOutputStream(new File(sFtpHome, "home/bench/download_" + size));
+        out.write(mUpload);
+        out.close();
+        mClient = new LoadClient(port, "bench", "bench", false);
+        mClient.command("TYPE " + type, "200");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mClient.quit();
+    }
+
+    @Benchmark
+    public long retr() throws IOException {
+        return mClient.retr("download_" + size);
+    }
+
+    @Benchmark
+    public void stor() throws IOException {
+        mClient.stor("upload_" + size, mUpload);
+    }
+}
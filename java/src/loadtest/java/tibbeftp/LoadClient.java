@@ -0,0 +1,239 @@
+package tibbeftp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A minimal FTP client for the load generator, the replay tool and the transfer benchmarks,
+ * passive or active (PORT) data connections
+ *
+ * @author jesper
+ */
+class LoadClient {
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private final Socket mControl;
+    private final BufferedReader mIn;
+    private final OutputStream mOut;
+    private final boolean mActive;
+    private final byte[] mBuffer = new byte[64 * 1024];
+
+    /**
+     * Connect and read the greeting
+     *
+     * @param active true to use PORT, false for PASV
+     */
+    LoadClient(InetAddress host, int port, boolean active) throws IOException {
+        mActive = active;
+        mControl = new Socket(host, port);
+        mControl.setTcpNoDelay(true);
+        mControl.setSoTimeout(TIMEOUT_MILLIS);
+        mIn = new BufferedReader(new InputStreamReader(mControl.getInputStream(), "UTF8"));
+        mOut = mControl.getOutputStream();
+        expect(reply(), "220");
+    }
+
+    /**
+     * Connect to the server on loopback, log in and switch to binary mode
+     */
+    LoadClient(int port, String user, String pass, boolean active) throws IOException {
+        this(InetAddress.getLoopbackAddress(), port, active);
+        command("USER " + user, "331");
+        command("PASS " + pass, "230");
+        command("TYPE I", "200");
+    }
+
+    String command(String line, String expectedCode) throws IOException {
+        send(line);
+        return expect(reply(), expectedCode);
+    }
+
+    void send(String line) throws IOException {
+        mOut.write((line + "\r\n").getBytes("UTF8"));
+        mOut.flush();
+    }
+
+    /**
+     * @return the last line of the next reply
+     */
+    String reply() throws IOException {
+        String line = mIn.readLine();
+        if (line != null && line.length() > 3 && line.charAt(3) == '-') {
+            String end = line.substring(0, 3) + " ";
+            while (line != null && !line.startsWith(end)) {
+                line = mIn.readLine();
+            }
+        }
+        if (line == null) {
+            throw new IOException("Control connection closed");
+        }
+        return line;
+    }
+
+    static String expect(String reply, String code) throws IOException {
+        if (!reply.startsWith(code)) {
+            throw new IOException("Expected " + code + " got: " + reply);
+        }
+        return reply;
+    }
+
+    /**
+     * @return bytes received
+     */
+    long retr(String name) throws IOException {
+        return download("RETR " + name);
+    }
+
+    /**
+     * @return bytes of listing received
+     */
+    long list() throws IOException {
+        return download("LIST");
+    }
+
+    void stor(String name, byte[] data) throws IOException {
+        DataConnection dc = openData();
+        try {
+            send("STOR " + name);
+            expect(reply(), "150");
+            dc.write(data, data.length);
+            expect(reply(), "226");
+        } finally {
+            dc.close();
+        }
+    }
+
+    private long download(String command) throws IOException {
+        DataConnection dc = openData();
+        try {
+            send(command);
+            expect(reply(), "150");
+            long total = dc.read();
+            expect(reply(), "226");
+            return total;
+        } finally {
+            dc.close();
+        }
+    }
+
+    void quit() {
+        try {
+            command("QUIT", "221");
+        } catch (IOException e) {
+        }
+        close();
+    }
+
+    void close() {
+        try {
+            mControl.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * PASV or PORT, as chosen when connecting
+     */
+    DataConnection openData() throws IOException {
+        if (mActive) {
+            DataConnection dc = listen();
+            command(dc.portCommand(), "2"); // any 2xx, the server has always answered PORT with 220
+            return dc;
+        }
+        return passive(command("PASV", "227"));
+    }
+
+    /**
+     * Listen for an active mode data connection on the address we use for the control connection,
+     * the caller sends the PORT command.
+     */
+    DataConnection listen() throws IOException {
+        DataConnection dc = new DataConnection();
+        dc.mServer = new ServerSocket(0, 1, mControl.getLocalAddress());
+        dc.mServer.setSoTimeout(TIMEOUT_MILLIS);
+        return dc;
+    }
+
+    /**
+     * Connect to the address in a 227 reply
+     */
+    DataConnection passive(String reply) throws IOException {
+        String[] n = reply.substring(reply.indexOf('(') + 1, reply.indexOf(')')).split(",");
+        String ip = n[0].trim() + "." + n[1].trim() + "." + n[2].trim() + "." + n[3].trim();
+        int port = Integer.parseInt(n[4].trim()) * 256 + Integer.parseInt(n[5].trim());
+        DataConnection dc = new DataConnection();
+        dc.mSocket = new Socket(ip, port);
+        return dc;
+    }
+
+    /**
+     * A data connection, connected (PASV) or still waiting for the server to connect (PORT)
+     */
+    class DataConnection {
+        ServerSocket mServer;
+        Socket mSocket;
+
+        String portCommand() {
+            byte[] ip = mServer.getInetAddress().getAddress();
+            int port = mServer.getLocalPort();
+            return "PORT " + (ip[0] & 0xff) + "," + (ip[1] & 0xff) + "," + (ip[2] & 0xff) + "," + (ip[3] & 0xff)
+                    + "," + (port >> 8) + "," + (port & 0xff);
+        }
+
+        private Socket connect() throws IOException {
+            if (mSocket == null) {
+                mSocket = mServer.accept();
+            }
+            mSocket.setSoTimeout(TIMEOUT_MILLIS);
+            return mSocket;
+        }
+
+        /**
+         * Read until the server closes the connection
+         *
+         * @return bytes received
+         */
+        long read() throws IOException {
+            InputStream in = connect().getInputStream();
+            long total = 0;
+            int read;
+            while ((read = in.read(mBuffer)) != -1) {
+                total += read;
+            }
+            close();
+            return total;
+        }
+
+        /**
+         * Send length bytes, repeating data as needed, then close
+         */
+        void write(byte[] data, long length) throws IOException {
+            OutputStream out = connect().getOutputStream();
+            long left = length;
+            while (left > 0) {
+                int n = (int) Math.min(left, data.length);
+                out.write(data, 0, n);
+                left -= n;
+            }
+            close();
+        }
+
+        void close() {
+            try {
+                if (mSocket != null) {
+                    mSocket.close();
+                }
+                if (mServer != null) {
+                    mServer.close();
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+}
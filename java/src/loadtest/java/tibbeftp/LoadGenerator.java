@@ -0,0 +1,386 @@
+package tibbeftp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * End to end load test. Starts the server in this JVM on free loopback ports against a temporary
+ * ftp-base, runs a mix of commands from N concurrent sessions for a while and reports throughput,
+ * latency percentiles and errors per operation. Nothing outside the machine is used.
+ * <p>
+ * Exit code is 1 if any operation failed.
+ *
+ * @author jesper
+ */
+public class LoadGenerator {
+    private static final String SYNTAX = "SYNTAX: LoadGenerator |-sessions=16| |-duration=Seconds| |-warmup=Seconds|"
+            + " |-mix=list:1,retr:4,stor:2,size:2,mdtm:1| |-data=pasv|port|mixed| |-file-size=Bytes| |-files=N|"
+            + " |-engine=nio|:Workers|:TransferThreads||| |-threads=virtual| |-pasv=shared| |-pasv-range=Min-Max| |-logging|";
+
+    enum Op {
+        LOGIN, LIST, RETR, STOR, SIZE, MDTM
+    }
+
+    private int mSessions = 16;
+    private int mDurationSeconds = 30;
+    private int mWarmupSeconds = 5;
+    private final Map<Op, Integer> mMix = new LinkedHashMap<>();
+    private String mDataMode = "pasv";
+    private int mFileSize = 1024 * 1024;
+    private int mFiles = 16;
+    private boolean mLogging = false;
+
+    private File mFtpHome;
+    private File mShared;
+    private int mPort;
+    private volatile boolean mMeasuring = false;
+    private volatile boolean mStop = false;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator lg = new LoadGenerator();
+        if (!lg.parse(args)) {
+            System.err.println(SYNTAX);
+            System.exit(2);
+        }
+        long errors = lg.run();
+        System.exit(errors == 0 ? 0 : 1);
+    }
+
+    private boolean parse(String[] args) {
+        mMix.put(Op.LIST, 1);
+        mMix.put(Op.RETR, 4);
+        mMix.put(Op.STOR, 2);
+        mMix.put(Op.SIZE, 2);
+        mMix.put(Op.MDTM, 1);
+        for (String arg : args) {
+            if (arg.startsWith("-sessions=")) {
+                mSessions = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("-duration=")) {
+                mDurationSeconds = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("-warmup=")) {
+                mWarmupSeconds = Integer.parseInt(arg.substring(8));
+            } else if (arg.startsWith("-mix=")) {
+                mMix.clear();
+                for (String part : arg.substring(5).split(",")) {
+                    String[] opWeight = part.split(":");
+                    mMix.put(Op.valueOf(opWeight[0].toUpperCase()), opWeight.length > 1 ? Integer.parseInt(opWeight[1]) : 1);
+                }
+            } else if (arg.startsWith("-data=")) {
+                mDataMode = arg.substring(6);
+                if (!mDataMode.equals("pasv") && !mDataMode.equals("port") && !mDataMode.equals("mixed")) {
+                    return false;
+                }
+            } else if (arg.startsWith("-file-size=")) {
+                mFileSize = Integer.parseInt(arg.substring(11));
+            } else if (arg.startsWith("-files=")) {
+                mFiles = Integer.parseInt(arg.substring(7));
+            } else if (arg.equals("-logging")) {
+                mLogging = true;
+            } else if (!serverOption(arg)) {
+                return false;
+            }
+        }
+        return !mMix.isEmpty();
+    }
+
+    /**
+     * Options for the server started in this JVM: -engine=nio[:workers[:transfers]], -threads=virtual,
+     * -pasv=shared and -pasv-range=min-max (default any free port)
+     *
+     * @return false if arg is not one of them
+     */
+    static boolean serverOption(String arg) {
+        if (arg.startsWith("-engine=nio")) {
+            MyFTP.NIO_ENGINE = true;
+            String[] engine = arg.substring(8).split(":");
+            if (engine.length > 1) {
+                MyFTP.NIO_WORKERS = Integer.parseInt(engine[1]);
+            }
+            if (engine.length > 2) {
+                MyFTP.NIO_TRANSFER_THREADS = Integer.parseInt(engine[2]);
+            }
+        } else if (arg.equals("-threads=virtual")) {
+            MyFTP.VIRTUAL_THREADS = MyFTP.virtualThreadsSupported();
+        } else if (arg.equals("-pasv=shared")) {
+            MyFTP.PASV_SHARED = true;
+        } else if (arg.startsWith("-pasv-range=")) {
+            String[] range = arg.substring(12).split("-");
+            MyFTP.PASV_RANGE_MIN = Integer.parseInt(range[0]);
+            MyFTP.PASV_RANGE_MAX = Integer.parseInt(range[1]);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Start the server in this JVM on a free port, Main.setFtpHome() must have been called
+     *
+     * @return the control port
+     */
+    static int startServer() throws Exception {
+        if (MyFTP.FTP_PORT == 21) {
+            MyFTP.FTP_PORT = 0;
+        }
+        if (!MyFTP.PASV_SHARED && MyFTP.PASV_RANGE_MIN == 8123) {
+            MyFTP.PASV_RANGE_MIN = 0; // any free port instead of the default range
+            MyFTP.PASV_RANGE_MAX = 0;
+        }
+        final MyFTP server = new MyFTP();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.run();
+            }
+        }, "LoadTestServer");
+        t.setDaemon(true);
+        t.start();
+        int port = server.awaitListening(10000);
+        if (port == 0) {
+            throw new IOException("Server did not start");
+        }
+        return port;
+    }
+
+    /**
+     * @return number of failed operations
+     */
+    private long run() throws Exception {
+        createFtpHome();
+        try {
+            mPort = startServer();
+            System.out.println("Load: " + mSessions + " sessions, " + mDataMode + " data connections, mix " + mMix
+                    + ", " + mFiles + " files of " + mFileSize + " bytes, warmup " + mWarmupSeconds + " s, measuring " + mDurationSeconds + " s");
+
+            Session[] sessions = new Session[mSessions];
+            for (int i = 0; i < mSessions; i++) {
+                sessions[i] = new Session(i);
+                sessions[i].start();
+            }
+            Thread.sleep(mWarmupSeconds * 1000L);
+            mMeasuring = true;
+            long start = System.nanoTime();
+            Thread.sleep(mDurationSeconds * 1000L);
+            mMeasuring = false;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            mStop = true;
+            for (Session s : sessions) {
+                s.join(60000);
+            }
+            return report(sessions, seconds);
+        } finally {
+            deleteRecursively(mFtpHome);
+        }
+    }
+
+    private void createFtpHome() throws IOException {
+        mFtpHome = Files.createTempDirectory("tibbeftp-load").toFile();
+        mShared = new File(mFtpHome, "shared");
+        mShared.mkdirs();
+        PrintWriter accounts = new PrintWriter(new File(mFtpHome, "accounts.txt"));
+        for (int i = 0; i < mSessions; i++) {
+            accounts.println("load" + i + " load " + mShared.getAbsolutePath());
+        }
+        accounts.close();
+        Random r = new Random(1);
+        byte[] content = new byte[mFileSize];
+        for (int i = 0; i < mFiles; i++) {
+            r.nextBytes(content);
+            FileOutputStream out = new FileOutputStream(new File(mShared, "file_" + i));
+            out.write(content);
+            out.close();
+        }
+        Main.setFtpHome(mFtpHome);
+        if (mLogging) {
+            Logger.setLogDir(new File(mFtpHome, "logs"));
+        }
+    }
+
+    private long report(Session[] sessions, double seconds) {
+        Map<Op, Stats> total = new LinkedHashMap<>();
+        for (Op op : Op.values()) {
+            total.put(op, new Stats());
+        }
+        for (Session s : sessions) {
+            for (Op op : Op.values()) {
+                total.get(op).addAll(s.mStats.get(op));
+            }
+        }
+        long ops = 0;
+        long errors = 0;
+        long bytesIn = 0;
+        long bytesOut = 0;
+        System.out.println();
+        System.out.println(String.format("%-6s %9s %7s %9s %9s %9s %9s %9s", "op", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        for (Map.Entry<Op, Stats> e : total.entrySet()) {
+            Stats s = e.getValue();
+            if (s.mCount == 0 && s.mErrors == 0) {
+                continue;
+            }
+            long[] sorted = Arrays.copyOf(s.mNanos, s.mCount);
+            Arrays.sort(sorted);
+            System.out.println(String.format("%-6s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f", e.getKey(), s.mCount, s.mErrors, s.mCount / seconds,
+                    percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1)));
+            ops += s.mCount;
+            errors += s.mErrors;
+            if (e.getKey() == Op.RETR || e.getKey() == Op.LIST) {
+                bytesOut += s.mBytes;
+            } else if (e.getKey() == Op.STOR) {
+                bytesIn += s.mBytes;
+            }
+        }
+        System.out.println();
+        System.out.println(String.format("Total: %d ops, %.1f ops/s, %d errors, download %.1f MB/s, upload %.1f MB/s",
+                ops, ops / seconds, errors, bytesOut / seconds / 1048576, bytesIn / seconds / 1048576));
+        for (Session s : sessions) {
+            if (s.mLastError != null) {
+                System.out.println("Last error in session " + s.mIndex + ": " + s.mLastError);
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * @return the value at quantile q of the sorted latencies, in milliseconds
+     */
+    static double percentile(long[] sorted, double q) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        f.delete();
+    }
+
+    /**
+     * Latencies of one operation, recorded by one session
+     */
+    private static class Stats {
+        long[] mNanos = new long[1024];
+        int mCount = 0;
+        long mErrors = 0;
+        long mBytes = 0;
+
+        void add(long nanos, long bytes) {
+            if (mCount == mNanos.length) {
+                mNanos = Arrays.copyOf(mNanos, mCount * 2);
+            }
+            mNanos[mCount++] = nanos;
+            mBytes += bytes;
+        }
+
+        void addAll(Stats other) {
+            for (int i = 0; i < other.mCount; i++) {
+                add(other.mNanos[i], 0);
+            }
+            mBytes += other.mBytes;
+            mErrors += other.mErrors;
+        }
+    }
+
+    /**
+     * One client session, reconnects after a failure
+     */
+    private class Session extends Thread {
+        final int mIndex;
+        final Map<Op, Stats> mStats = new LinkedHashMap<>();
+        final Random mRandom;
+        final List<Op> mWeighted = new ArrayList<>();
+        final byte[] mUpload;
+        String mLastError = null;
+
+        Session(int index) {
+            super("LoadSession_" + index);
+            mIndex = index;
+            mRandom = new Random(index);
+            for (Op op : Op.values()) {
+                mStats.put(op, new Stats());
+            }
+            for (Map.Entry<Op, Integer> e : mMix.entrySet()) {
+                for (int i = 0; i < e.getValue(); i++) {
+                    mWeighted.add(e.getKey());
+                }
+            }
+            mUpload = new byte[mFileSize];
+            mRandom.nextBytes(mUpload);
+        }
+
+        @Override
+        public void run() {
+            LoadClient client = null;
+            int uploads = 0;
+            while (!mStop) {
+                Op op = Op.LOGIN;
+                long start = System.nanoTime();
+                try {
+                    if (client == null) {
+                        boolean active = mDataMode.equals("port") || (mDataMode.equals("mixed") && mIndex % 2 == 1);
+                        client = new LoadClient(mPort, "load" + mIndex, "load", active);
+                        record(op, start, 0);
+                        start = System.nanoTime();
+                    }
+                    op = mWeighted.get(mRandom.nextInt(mWeighted.size()));
+                    String file = "file_" + mRandom.nextInt(mFiles);
+                    long bytes = 0;
+                    switch (op) {
+                        case LIST:
+                            bytes = client.list();
+                            break;
+                        case RETR:
+                            bytes = client.retr(file);
+                            break;
+                        case STOR:
+                            client.stor("upload_" + mIndex + "_" + (uploads++ % 4), mUpload);
+                            bytes = mUpload.length;
+                            break;
+                        case SIZE:
+                            client.command("SIZE " + file, "213");
+                            break;
+                        case MDTM:
+                            client.command("MDTM " + file, "213");
+                            break;
+                        default:
+                            break;
+                    }
+                    record(op, start, bytes);
+                } catch (Exception e) {
+                    if (mMeasuring) {
+                        mStats.get(op).mErrors++;
+                    }
+                    mLastError = op + ": " + e;
+                    if (client != null) {
+                        client.close();
+                        client = null;
+                    }
+                }
+            }
+            if (client != null) {
+                client.quit();
+            }
+        }
+
+        private void record(Op op, long start, long bytes) {
+            if (mMeasuring) {
+                mStats.get(op).add(System.nanoTime() - start, bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package tibbeftp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One session read back from a session log (logs/[user/]yyyyMMdd.HHmmss_id.txt). The RECV lines
+ * are the commands, the SEND lines that follow tell how the server answered them, how big the
+ * downloaded files were and roughly how much was uploaded.
+ * <p>
+ * Log lines have a 12 hour clock without AM/PM, so times are taken relative to the start time in
+ * the file name (24 hour clock) and then line by line, which is unambiguous as long as a session
+ * is not silent for 12 hours.
+ *
+ * @author jesper
+ */
+class RecordedSession {
+    private static final long HALF_DAY = 12 * 3600 * 1000L;
+    private static final Pattern LINE = Pattern.compile("^\\d{4}-\\d\\d-\\d\\d (\\d\\d):(\\d\\d):(\\d\\d):(\\d{3})\\t(\\w+)\\t(.*)$");
+    private static final Pattern FILE_NAME = Pattern.compile("^(\\d{8}\\.\\d{6})_.*\\.txt$");
+    private static final Pattern DOWNLOAD_SIZE = Pattern.compile("\\((\\d+) bytes\\)");
+    private static final Pattern KBPS = Pattern.compile("Transfer complete - ([0-9.]+) KB/s");
+
+    /**
+     * A command and how it went when it was recorded
+     */
+    static class Step {
+        final long mOffset; // millis since the start of the session
+        final String mVerb;
+        final String mArg;
+        String mPath = null; // absolute path of the file or directory argument, as the session saw it
+        String mReply = null; // code of the final reply
+        long mBytes = -1; // transferred by RETR, STOR and APPE
+        long mTransferStart = 0; // offset of the 150 reply
+
+        Step(long offset, String verb, String arg) {
+            mOffset = offset;
+            mVerb = verb;
+            mArg = arg;
+        }
+
+        boolean succeeded() {
+            return mReply != null && mReply.charAt(0) < '4';
+        }
+    }
+
+    final File mFile;
+    final long mStart; // epoch millis
+    String mUser = null;
+    final List<Step> mSteps = new ArrayList<>();
+    /**
+     * Files (absolute path to size, -1 if unknown) that must exist for the session to replay as
+     * recorded, because it used them without uploading them first
+     */
+    final Map<String, Long> mFilesUsed = new LinkedHashMap<>();
+    final Set<String> mDirsUsed = new HashSet<>();
+
+    private RecordedSession(File file, long start) {
+        mFile = file;
+        mStart = start;
+    }
+
+    /**
+     * @return the session, null if the file is not a session log or has no commands
+     */
+    static RecordedSession read(File file) throws IOException {
+        Matcher m = FILE_NAME.matcher(file.getName());
+        if (!m.matches()) {
+            return null;
+        }
+        long start;
+        try {
+            start = new SimpleDateFormat("yyyyMMdd.HHmmss").parse(m.group(1)).getTime();
+        } catch (ParseException e) {
+            return null;
+        }
+        RecordedSession session = new RecordedSession(file, start);
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF8"));
+        try {
+            session.parse(in);
+        } finally {
+            in.close();
+        }
+        return session.mSteps.isEmpty() ? null : session;
+    }
+
+    private void parse(BufferedReader in) throws IOException {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(mStart);
+        long previousHalfDay = halfDayMillis(c.get(Calendar.HOUR), c.get(Calendar.MINUTE), c.get(Calendar.SECOND), 0);
+        long offset = 0;
+        String cwd = "/";
+        Set<String> uploaded = new HashSet<>();
+        Step step = null;
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            Matcher m = LINE.matcher(line);
+            if (!m.matches()) {
+                continue; // continuation of a multi line message (stack trace)
+            }
+            long halfDay = halfDayMillis(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)),
+                    Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
+            offset += Math.floorMod(halfDay - previousHalfDay, HALF_DAY);
+            previousHalfDay = halfDay;
+            String tag = m.group(5);
+            String message = m.group(6).trim();
+
+            if (tag.equals("RECV")) {
+                if (step != null) {
+                    cwd = finish(step, cwd, uploaded);
+                    step = null;
+                }
+                if (message.isEmpty()) {
+                    continue;
+                }
+                int space = message.indexOf(' ');
+                String verb = (space < 0 ? message : message.substring(0, space)).toUpperCase();
+                String arg = space < 0 ? null : message.substring(space + 1).trim();
+                step = new Step(offset, verb, arg);
+                mSteps.add(step);
+                if (arg != null && isPathCommand(verb)) {
+                    step.mPath = resolve(cwd, arg);
+                }
+            } else if (tag.equals("SEND") && step != null && message.length() >= 3) {
+                String code = message.substring(0, 3);
+                if (message.length() > 3 && message.charAt(3) == '-') {
+                    continue; // the end of a multi line reply follows
+                }
+                step.mReply = code;
+                if (code.equals("150")) {
+                    step.mTransferStart = offset;
+                    Matcher size = DOWNLOAD_SIZE.matcher(message);
+                    if (size.find()) {
+                        step.mBytes = Long.parseLong(size.group(1));
+                    }
+                } else if (code.equals("226") && step.mBytes < 0) {
+                    // Uploads only tell the speed, which is bytes / 1.024 / millis
+                    Matcher kBps = KBPS.matcher(message);
+                    if (kBps.find()) {
+                        long millis = Math.max(1, offset - step.mTransferStart);
+                        step.mBytes = (long) (Double.parseDouble(kBps.group(1)) * 1.024 * millis);
+                    }
+                } else if (code.equals("213") && step.mVerb.equals("SIZE")) {
+                    try {
+                        step.mBytes = Long.parseLong(message.substring(4).trim());
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+        }
+        if (step != null) {
+            finish(step, cwd, uploaded);
+        }
+    }
+
+    /**
+     * Note what the command needs to exist and how it moved the session around
+     *
+     * @return the current directory after the command
+     */
+    private String finish(Step step, String cwd, Set<String> uploaded) {
+        String verb = step.mVerb;
+        if (verb.equals("USER") && mUser == null) {
+            mUser = step.mArg;
+        }
+        if (!step.succeeded()) {
+            return cwd;
+        }
+        if (verb.equals("CWD")) {
+            mDirsUsed.add(step.mPath);
+            return step.mPath;
+        } else if (verb.equals("CDUP")) {
+            return resolve(cwd, "..");
+        } else if (verb.equals("STOR") || verb.equals("APPE") || verb.equals("MKD")) {
+            uploaded.add(step.mPath);
+        } else if (step.mPath != null && !uploaded.contains(step.mPath)
+                && (verb.equals("RETR") || verb.equals("SIZE") || verb.equals("MDTM") || verb.equals("DELE") || verb.equals("RNFR"))) {
+            Long known = mFilesUsed.get(step.mPath);
+            mFilesUsed.put(step.mPath, Math.max(known == null ? -1 : known, step.mBytes));
+        }
+        return cwd;
+    }
+
+    private static boolean isPathCommand(String verb) {
+        switch (verb) {
+            case "CWD":
+            case "RETR":
+            case "STOR":
+            case "APPE":
+            case "SIZE":
+            case "MDTM":
+            case "DELE":
+            case "RNFR":
+            case "MKD":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static long halfDayMillis(int hour, int minute, int second, int millis) {
+        return (((hour % 12) * 60L + minute) * 60 + second) * 1000 + millis;
+    }
+
+    /**
+     * @return path as an absolute, normalized path in the user's root
+     */
+    static String resolve(String cwd, String path) {
+        List<String> parts = new ArrayList<>();
+        String full = path.startsWith("/") ? path : cwd + "/" + path;
+        for (String part : full.split("/")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                if (!parts.isEmpty()) {
+                    parts.remove(parts.size() - 1);
+                }
+            } else {
+                parts.add(part);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            sb.append('/').append(part);
+        }
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+}
@@ -0,0 +1,414 @@
+package tibbeftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Replays the sessions recorded in the session logs (ftp-base/logs) against a server, with the
+ * recorded timing (optionally sped up) and synthetic file contents of the recorded sizes.
+ * <p>
+ * Without -target the server is started in this JVM against a temporary ftp-base. Every recorded
+ * user gets an account there. Directories and files the sessions used without creating them are
+ * uploaded before the replay starts, with the sizes seen in the logs. That is done with -target
+ * too, replacing files with the same names, so only point it at a test instance. Passwords in the
+ * logs are never sent, all accounts use the -password given (default "replay").
+ * <p>
+ * Reports latency per command, replies that differ (in their first digit) from the recorded ones
+ * and sessions that failed.
+ *
+ * @author jesper
+ */
+public class TrafficReplay {
+    private static final String SYNTAX = "SYNTAX: TrafficReplay -logs=Dir |-speed=Factor| |-target=Host:Port|"
+            + " |-user=Login| |-password=Password| |-max-file-size=Bytes|"
+            + " |-engine=nio|:Workers|:TransferThreads||| |-threads=virtual| |-pasv=shared| |-pasv-range=Min-Max|";
+
+    private File mLogs = null;
+    private double mSpeed = 1;
+    private InetAddress mHost = InetAddress.getLoopbackAddress();
+    private int mPort = 0;
+    private String mUser = null;
+    private String mPassword = "replay";
+    private long mMaxFileSize = 256L * 1024 * 1024;
+
+    private final byte[] mContent = new byte[64 * 1024];
+    private final List<RecordedSession> mSessions = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        TrafficReplay replay = new TrafficReplay();
+        if (!replay.parse(args)) {
+            System.err.println(SYNTAX);
+            System.exit(2);
+        }
+        long failures = replay.run();
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private boolean parse(String[] args) throws IOException {
+        for (String arg : args) {
+            if (arg.startsWith("-logs=")) {
+                mLogs = new File(arg.substring(6));
+            } else if (arg.startsWith("-speed=")) {
+                mSpeed = Double.parseDouble(arg.substring(7));
+            } else if (arg.startsWith("-target=")) {
+                String[] hostPort = arg.substring(8).split(":");
+                mHost = InetAddress.getByName(hostPort[0]);
+                mPort = Integer.parseInt(hostPort[1]);
+            } else if (arg.startsWith("-user=")) {
+                mUser = arg.substring(6);
+            } else if (arg.startsWith("-password=")) {
+                mPassword = arg.substring(10);
+            } else if (arg.startsWith("-max-file-size=")) {
+                mMaxFileSize = Long.parseLong(arg.substring(15));
+            } else if (!LoadGenerator.serverOption(arg)) {
+                return false;
+            }
+        }
+        return mLogs != null && mLogs.isDirectory() && mSpeed >= 0;
+    }
+
+    /**
+     * @return number of sessions that failed
+     */
+    private long run() throws Exception {
+        readLogs(mLogs);
+        if (mSessions.isEmpty()) {
+            System.err.println("No sessions found in " + mLogs);
+            return 1;
+        }
+        Collections.sort(mSessions, new Comparator<RecordedSession>() {
+            @Override
+            public int compare(RecordedSession a, RecordedSession b) {
+                return Long.compare(a.mStart, b.mStart);
+            }
+        });
+        new Random(0).nextBytes(mContent);
+
+        File ftpHome = null;
+        try {
+            if (mPort == 0) {
+                ftpHome = createFtpHome();
+                mPort = LoadGenerator.startServer();
+            }
+            prepare();
+
+            long recordedStart = mSessions.get(0).mStart;
+            long recordedEnd = 0;
+            int steps = 0;
+            for (RecordedSession s : mSessions) {
+                RecordedSession.Step last = s.mSteps.get(s.mSteps.size() - 1);
+                recordedEnd = Math.max(recordedEnd, s.mStart + last.mOffset);
+                steps += s.mSteps.size();
+            }
+            System.out.println("Replaying " + mSessions.size() + " sessions, " + steps + " commands, recorded over "
+                    + (recordedEnd - recordedStart) / 1000 + " s, at speed " + (mSpeed == 0 ? "max" : mSpeed));
+
+            long replayStart = System.currentTimeMillis();
+            Replayer[] replayers = new Replayer[mSessions.size()];
+            for (int i = 0; i < replayers.length; i++) {
+                replayers[i] = new Replayer(mSessions.get(i), replayStart, recordedStart);
+                replayers[i].start();
+            }
+            for (Replayer r : replayers) {
+                r.join();
+            }
+            return report(replayers, (System.currentTimeMillis() - replayStart) / 1000.0);
+        } finally {
+            if (ftpHome != null) {
+                LoadGenerator.deleteRecursively(ftpHome);
+            }
+        }
+    }
+
+    private void readLogs(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                readLogs(f);
+            } else {
+                RecordedSession s = RecordedSession.read(f);
+                if (s != null) {
+                    mSessions.add(s);
+                }
+            }
+        }
+    }
+
+    private String login(RecordedSession s) {
+        if (mUser != null) {
+            return mUser;
+        }
+        return s.mUser == null ? "anonymous" : s.mUser;
+    }
+
+    private File createFtpHome() throws IOException {
+        File ftpHome = Files.createTempDirectory("tibbeftp-replay").toFile();
+        PrintWriter accounts = new PrintWriter(new File(ftpHome, "accounts.txt"));
+        for (String login : logins()) {
+            accounts.println(login + " " + mPassword);
+        }
+        accounts.close();
+        Main.setFtpHome(ftpHome);
+        return ftpHome;
+    }
+
+    private List<String> logins() {
+        List<String> logins = new ArrayList<>();
+        for (RecordedSession s : mSessions) {
+            if (!logins.contains(login(s))) {
+                logins.add(login(s));
+            }
+        }
+        return logins;
+    }
+
+    /**
+     * Create the directories and files the sessions expect to find, one login at a time
+     */
+    private void prepare() throws IOException {
+        for (String login : logins()) {
+            TreeMap<String, Long> files = new TreeMap<>();
+            TreeMap<String, Boolean> dirs = new TreeMap<>();
+            for (RecordedSession s : mSessions) {
+                if (!login(s).equals(login)) {
+                    continue;
+                }
+                for (String dir : s.mDirsUsed) {
+                    dirs.put(dir, true);
+                }
+                for (Map.Entry<String, Long> e : s.mFilesUsed.entrySet()) {
+                    Long known = files.get(e.getKey());
+                    files.put(e.getKey(), Math.max(known == null ? 0 : known, e.getValue()));
+                    dirs.put(RecordedSession.resolve(e.getKey(), ".."), true);
+                }
+            }
+            if (files.isEmpty() && dirs.isEmpty()) {
+                continue;
+            }
+            LoadClient client = new LoadClient(mHost, mPort, false);
+            try {
+                client.command("USER " + login, "331");
+                client.command("PASS " + mPassword, "230");
+                client.command("TYPE I", "200");
+                for (String dir : dirs.keySet()) {
+                    // every level, TreeMap order has parents first
+                    for (int i = dir.indexOf('/', 1); ; i = dir.indexOf('/', i + 1)) {
+                        client.send("MKD " + (i < 0 ? dir : dir.substring(0, i)));
+                        client.reply(); // fine if it exists
+                        if (i < 0) {
+                            break;
+                        }
+                    }
+                }
+                for (Map.Entry<String, Long> e : files.entrySet()) {
+                    long size = Math.min(mMaxFileSize, e.getValue());
+                    LoadClient.DataConnection dc = client.openData();
+                    client.send("STOR " + e.getKey());
+                    LoadClient.expect(client.reply(), "150");
+                    dc.write(mContent, size);
+                    LoadClient.expect(client.reply(), "226");
+                }
+            } finally {
+                client.quit();
+            }
+            System.out.println("Prepared " + dirs.size() + " directories and " + files.size() + " files for " + login);
+        }
+    }
+
+    private long report(Replayer[] replayers, double seconds) {
+        Map<String, long[]> latencies = new TreeMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, Integer> mismatches = new HashMap<>();
+        long failures = 0;
+        long skipped = 0;
+        for (Replayer r : replayers) {
+            for (Map.Entry<String, List<Long>> e : r.mLatencies.entrySet()) {
+                long[] all = latencies.get(e.getKey());
+                int n = counts.containsKey(e.getKey()) ? counts.get(e.getKey()) : 0;
+                all = all == null ? new long[e.getValue().size()] : Arrays.copyOf(all, n + e.getValue().size());
+                for (long nanos : e.getValue()) {
+                    all[n++] = nanos;
+                }
+                latencies.put(e.getKey(), all);
+                counts.put(e.getKey(), n);
+            }
+            for (Map.Entry<String, Integer> e : r.mMismatches.entrySet()) {
+                mismatches.put(e.getKey(), (mismatches.containsKey(e.getKey()) ? mismatches.get(e.getKey()) : 0) + e.getValue());
+            }
+            if (r.mError != null) {
+                failures++;
+                skipped += r.mSkipped;
+            }
+        }
+        System.out.println();
+        System.out.println(String.format("%-6s %9s %10s %9s %9s %9s", "cmd", "count", "mismatch", "p50 ms", "p99 ms", "max ms"));
+        for (Map.Entry<String, long[]> e : latencies.entrySet()) {
+            long[] sorted = e.getValue();
+            Arrays.sort(sorted);
+            Integer mismatch = mismatches.get(e.getKey());
+            System.out.println(String.format("%-6s %9d %10d %9.2f %9.2f %9.2f", e.getKey(), sorted.length, mismatch == null ? 0 : mismatch,
+                    LoadGenerator.percentile(sorted, 0.5), LoadGenerator.percentile(sorted, 0.99), LoadGenerator.percentile(sorted, 1)));
+        }
+        System.out.println();
+        System.out.println(String.format("Replayed %d sessions in %.1f s, %d failed (%d commands not replayed)",
+                replayers.length, seconds, failures, skipped));
+        for (Replayer r : replayers) {
+            if (r.mError != null) {
+                System.out.println("  " + r.mSession.mFile + ": " + r.mError);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Plays one recorded session
+     */
+    private class Replayer extends Thread {
+        final RecordedSession mSession;
+        final long mReplayStart;
+        final long mRecordedStart;
+        final Map<String, List<Long>> mLatencies = new LinkedHashMap<>();
+        final Map<String, Integer> mMismatches = new HashMap<>();
+        String mError = null;
+        int mSkipped = 0;
+
+        Replayer(RecordedSession session, long replayStart, long recordedStart) {
+            super("Replay_" + session.mFile.getName());
+            mSession = session;
+            mReplayStart = replayStart;
+            mRecordedStart = recordedStart;
+        }
+
+        @Override
+        public void run() {
+            LoadClient client = null;
+            LoadClient.DataConnection data = null;
+            int done = 0;
+            try {
+                waitFor(mSession.mStart - mRecordedStart);
+                client = new LoadClient(mHost, mPort, false);
+                for (RecordedSession.Step step : mSession.mSteps) {
+                    waitFor(mSession.mStart - mRecordedStart + step.mOffset);
+                    long start = System.nanoTime();
+                    String reply;
+                    switch (step.mVerb) {
+                        case "USER":
+                            client.send("USER " + login(mSession));
+                            reply = client.reply();
+                            break;
+                        case "PASS":
+                            client.send("PASS " + mPassword);
+                            reply = client.reply();
+                            break;
+                        case "PORT":
+                            closeQuietly(data);
+                            data = client.listen();
+                            client.send(data.portCommand());
+                            reply = client.reply();
+                            break;
+                        case "PASV":
+                            closeQuietly(data);
+                            data = null;
+                            client.send("PASV");
+                            reply = client.reply();
+                            if (reply.startsWith("227")) {
+                                data = client.passive(reply);
+                            }
+                            break;
+                        case "LIST":
+                        case "NLST":
+                        case "MLSD":
+                        case "RETR":
+                        case "STOR":
+                        case "APPE":
+                            client.send(step.mArg == null ? step.mVerb : step.mVerb + " " + step.mArg);
+                            reply = client.reply();
+                            // Without a data connection a 1xx is all there is (RETR without argument)
+                            if (reply.startsWith("1") && data != null) {
+                                if (step.mVerb.equals("STOR") || step.mVerb.equals("APPE")) {
+                                    data.write(mContent, Math.min(mMaxFileSize, Math.max(0, step.mBytes)));
+                                } else {
+                                    data.read();
+                                }
+                                reply = client.reply();
+                            }
+                            closeQuietly(data);
+                            data = null;
+                            break;
+                        case "QUIT":
+                            client.send("QUIT");
+                            reply = client.reply();
+                            client.close();
+                            client = null;
+                            break;
+                        default:
+                            client.send(step.mArg == null ? step.mVerb : step.mVerb + " " + step.mArg);
+                            reply = client.reply();
+                            break;
+                    }
+                    record(step, reply, System.nanoTime() - start);
+                    done++;
+                    if (client == null) {
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                mError = e.toString();
+                mSkipped = mSession.mSteps.size() - done;
+            } finally {
+                closeQuietly(data);
+                if (client != null) {
+                    client.close();
+                }
+            }
+        }
+
+        private void record(RecordedSession.Step step, String reply, long nanos) {
+            List<Long> l = mLatencies.get(step.mVerb);
+            if (l == null) {
+                l = new ArrayList<>();
+                mLatencies.put(step.mVerb, l);
+            }
+            l.add(nanos);
+            if (step.mReply != null && reply.charAt(0) != step.mReply.charAt(0)) {
+                Integer n = mMismatches.get(step.mVerb);
+                mMismatches.put(step.mVerb, n == null ? 1 : n + 1);
+            }
+        }
+
+        /**
+         * Sleep until the recorded offset (scaled by the speed) since the start of the replay
+         */
+        private void waitFor(long recordedOffset) throws InterruptedException {
+            if (mSpeed == 0) {
+                return;
+            }
+            long wait = mReplayStart + (long) (recordedOffset / mSpeed) - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+        }
+
+        private void closeQuietly(LoadClient.DataConnection dc) {
+            if (dc != null) {
+                dc.close();
+            }
+        }
+    }
+}
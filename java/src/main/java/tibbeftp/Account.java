@@ -1,7 +1,18 @@
 package tibbeftp;
 
 import java.io.*;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author jesper
@@ -42,10 +53,117 @@ public class Account {
      */
     public static Account getAccount(final String providedUserName, final String providedPassword) {
         File fAccounts = new File(Main.getFtpHome(), "accounts.txt");
-        if (!fAccounts.exists()) {
-            System.err.println(fAccounts + " missing!");
+        AccountsFile accounts = getAccounts(fAccounts);
+        if (accounts == null || providedUserName == null) {
             return null;
         }
+
+        // Lines with the same login are chained in file order, any of them may match
+        for (Entry e = accounts.mEntries.get(providedUserName); e != null; e = e.mNext) {
+            if (providedPassword.equals(e.mPass)) {
+                if (!accounts.mCheckedHomeDirs.contains(e.mHomeDir)) {
+                    if (!e.mHomeDir.isDirectory() && !e.mHomeDir.mkdirs()) {
+                        System.err.println(e.mHomeDir + " does not exist and could not be created!");
+                    } else {
+                        accounts.mCheckedHomeDirs.add(e.mHomeDir);
+                    }
+                }
+                return new Account(e.mLogin, e.mHomeDir);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the home directories of all accounts in accounts.txt, empty if it can't be read
+     */
+    static Set<File> getHomeDirs() {
+        Set<File> homeDirs = new LinkedHashSet<>();
+        AccountsFile accounts = getAccounts(new File(Main.getFtpHome(), "accounts.txt"));
+        if (accounts != null) {
+            for (Entry first : accounts.mEntries.values()) {
+                for (Entry e = first; e != null; e = e.mNext) {
+                    homeDirs.add(e.mHomeDir);
+                }
+            }
+        }
+        return homeDirs;
+    }
+
+    /**
+     * One line of accounts.txt
+     */
+    private static class Entry {
+        final String mLogin;
+        final String mPass;
+        final File mHomeDir;
+        Entry mNext;
+
+        Entry(String login, String pass, File homeDir) {
+            mLogin = login;
+            mPass = pass;
+            mHomeDir = homeDir;
+        }
+    }
+
+    /**
+     * A parsed snapshot of accounts.txt. Replaced as a whole when the file changes.
+     */
+    private static class AccountsFile {
+        final long mLastModified;
+        final long mLength;
+        final Map<String, Entry> mEntries;
+        final Set<File> mCheckedHomeDirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+        AccountsFile(long lastModified, long length, Map<String, Entry> entries) {
+            mLastModified = lastModified;
+            mLength = length;
+            mEntries = entries;
+        }
+    }
+
+    private static final long STAT_INTERVAL_MILLIS = 1000;
+    private static volatile AccountsFile sAccounts = null;
+    private static volatile long sNextStat = 0;
+    private static volatile boolean sChanged = false; // set by the watcher thread
+    private static boolean sWatcherStarted = false;
+
+    /**
+     * @return the cached accounts, reloaded if accounts.txt has changed since it was parsed
+     */
+    private static AccountsFile getAccounts(File fAccounts) {
+        AccountsFile current = sAccounts;
+        long now = System.currentTimeMillis();
+        if (current != null && !sChanged && now < sNextStat) {
+            return current;
+        }
+        synchronized (Account.class) {
+            current = sAccounts;
+            if (!fAccounts.exists()) {
+                System.err.println(fAccounts + " missing!");
+                sAccounts = null;
+                return null;
+            }
+            sNextStat = now + STAT_INTERVAL_MILLIS;
+            long lastModified = fAccounts.lastModified();
+            long length = fAccounts.length();
+            if (current != null && !sChanged && current.mLastModified == lastModified && current.mLength == length) {
+                return current;
+            }
+            sChanged = false;
+            Map<String, Entry> entries = parse(fAccounts);
+            if (entries == null) {
+                return current; // keep the old accounts if the file could not be read
+            }
+            current = new AccountsFile(lastModified, length, entries);
+            sAccounts = current;
+            startWatcher(fAccounts);
+            return current;
+        }
+    }
+
+    private static Map<String, Entry> parse(File fAccounts) {
+        Map<String, Entry> entries = new HashMap<>();
         BufferedReader in = null;
         try {
             FileInputStream fin = new FileInputStream(fAccounts);
@@ -73,18 +191,20 @@ public class Account {
                     homeDir = new File(Main.getFtpHome(), "home/" + user);
                 }
 
-                // Verify that a username and password was retrieved from the line
-                boolean credentialsOk = providedUserName.equals(user) && providedPassword.equals(pass);
-                if (credentialsOk) {
-                    if (!homeDir.isDirectory() && !homeDir.mkdirs()) {
-                        System.err.println(homeDir + " does not exist and could not be created!");
+                Entry e = new Entry(user, pass, homeDir);
+                Entry first = entries.get(user);
+                if (first == null) {
+                    entries.put(user, e);
+                } else {
+                    while (first.mNext != null) {
+                        first = first.mNext;
                     }
-                    Account ac = new Account(user, homeDir);
-                    return ac;
+                    first.mNext = e;
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         } finally {
             try {
                 in.close();
@@ -92,6 +212,51 @@ public class Account {
                 e.printStackTrace();
             }
         }
-        return null;
+        return entries;
+    }
+
+    /**
+     * Watch the ftp-base directory so that edits to accounts.txt are picked up on the next login
+     * without waiting for the stat interval
+     */
+    private static void startWatcher(final File fAccounts) {
+        if (sWatcherStarted) {
+            return;
+        }
+        sWatcherStarted = true;
+        final WatchService ws;
+        try {
+            ws = FileSystems.getDefault().newWatchService();
+            fAccounts.getAbsoluteFile().getParentFile().toPath().register(ws,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            System.err.println("Unable to watch " + fAccounts + ", changes are detected by polling (" + e + ")");
+            return;
+        }
+        Thread t = new Thread("AccountsWatcher") {
+            @Override
+            public void run() {
+                while (true) {
+                    WatchKey key;
+                    try {
+                        key = ws.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Object context = event.context();
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                                || (context != null && context.toString().equals(fAccounts.getName()))) {
+                            sChanged = true;
+                        }
+                    }
+                    if (!key.reset()) {
+                        return;
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
     }
 }
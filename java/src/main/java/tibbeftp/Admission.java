@@ -0,0 +1,237 @@
+package tibbeftp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on concurrent sessions: in total (MAX_SESSIONS), per client IP (MAX_SESSIONS_PER_IP) and
+ * per account (MAX_SESSIONS_PER_ACCOUNT), 0 meaning no limit. Connections over the total limit
+ * may wait for a free slot in a bounded queue (ADMISSION_QUEUE connections, at most
+ * ADMISSION_TIMEOUT seconds), everything else over a limit gets 421 right away.
+ *
+ * @author jesper
+ */
+public class Admission {
+    static final int ADMITTED = 0;
+    static final int QUEUED = 1;
+    static final int REJECTED_IP = 2;
+    static final int REJECTED_FULL = 3;
+
+    public static final int MAX_SESSIONS;
+    public static final int MAX_SESSIONS_PER_IP;
+    public static final int MAX_SESSIONS_PER_ACCOUNT;
+    public static final int QUEUE_SIZE;
+    public static final int QUEUE_TIMEOUT;
+
+    static {
+        MAX_SESSIONS = intEnv("MAX_SESSIONS", 0);
+        MAX_SESSIONS_PER_IP = intEnv("MAX_SESSIONS_PER_IP", 0);
+        MAX_SESSIONS_PER_ACCOUNT = intEnv("MAX_SESSIONS_PER_ACCOUNT", 0);
+        QUEUE_SIZE = intEnv("ADMISSION_QUEUE", 0);
+        QUEUE_TIMEOUT = intEnv("ADMISSION_TIMEOUT", 30) * 1000;
+    }
+
+    private static int intEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private final Semaphore mSlots = MAX_SESSIONS > 0 ? new Semaphore(MAX_SESSIONS, true) : null;
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final Map<InetAddress, Integer> mPerIp = new HashMap<>();
+    private final Map<String, Integer> mPerAccount = new HashMap<>();
+    private final AtomicLong mRejectedFull = new AtomicLong();
+    private final AtomicLong mRejectedIp = new AtomicLong();
+    private final AtomicLong mRejectedAccount = new AtomicLong();
+    private final AtomicLong mQueueTimeouts = new AtomicLong();
+
+    /**
+     * Decide on a new connection, before anything is set up for it. Unless rejected, release()
+     * must be called when the session ends.
+     *
+     * @return ADMITTED, QUEUED (call awaitSlot() before serving it), REJECTED_IP or REJECTED_FULL
+     */
+    int tryAdmit(InetAddress ip) {
+        if (MAX_SESSIONS_PER_IP > 0) {
+            synchronized (mPerIp) {
+                Integer n = mPerIp.get(ip);
+                if (n != null && n >= MAX_SESSIONS_PER_IP) {
+                    mRejectedIp.incrementAndGet();
+                    return REJECTED_IP;
+                }
+                mPerIp.put(ip, n == null ? 1 : n + 1);
+            }
+        }
+        if (mSlots == null || (mQueued.get() == 0 && acquireNow())) {
+            return ADMITTED;
+        }
+        if (mQueued.incrementAndGet() <= QUEUE_SIZE) {
+            return QUEUED;
+        }
+        mQueued.decrementAndGet();
+        mRejectedFull.incrementAndGet();
+        decrementIp(ip);
+        return REJECTED_FULL;
+    }
+
+    /**
+     * @return true if a slot was free and nobody is waiting for it. The untimed tryAcquire() would
+     * barge ahead of the queue, and queued connections are only counted until they wait.
+     */
+    private boolean acquireNow() {
+        try {
+            return mSlots.tryAcquire(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Wait in the queue for a session slot
+     *
+     * @return false if none became free within ADMISSION_TIMEOUT, the connection is then rejected
+     * but release() must still be called
+     */
+    boolean awaitSlot() {
+        try {
+            if (mSlots.tryAcquire(QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+        } finally {
+            mQueued.decrementAndGet();
+        }
+        mQueueTimeouts.incrementAndGet();
+        mRejectedFull.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * A session has ended
+     *
+     * @param holdsSlot false if it never got out of the queue
+     */
+    void release(InetAddress ip, boolean holdsSlot) {
+        if (holdsSlot && mSlots != null) {
+            mSlots.release();
+        }
+        decrementIp(ip);
+    }
+
+    /**
+     * Give back what tryAdmit() took for a connection that never got a session running
+     */
+    void abandon(InetAddress ip, int admission) {
+        if (admission == QUEUED) {
+            mQueued.decrementAndGet();
+        }
+        release(ip, admission == ADMITTED);
+    }
+
+    /**
+     * Count a session logging in to an account. If true, logout() must be called when the session
+     * ends or logs in again.
+     *
+     * @return false if the account has too many sessions already
+     */
+    boolean login(String login) {
+        if (MAX_SESSIONS_PER_ACCOUNT <= 0) {
+            return true;
+        }
+        synchronized (mPerAccount) {
+            Integer n = mPerAccount.get(login);
+            if (n != null && n >= MAX_SESSIONS_PER_ACCOUNT) {
+                mRejectedAccount.incrementAndGet();
+                return false;
+            }
+            mPerAccount.put(login, n == null ? 1 : n + 1);
+            return true;
+        }
+    }
+
+    void logout(String login) {
+        if (MAX_SESSIONS_PER_ACCOUNT <= 0) {
+            return;
+        }
+        synchronized (mPerAccount) {
+            Integer n = mPerAccount.get(login);
+            if (n == null || n <= 1) {
+                mPerAccount.remove(login);
+            } else {
+                mPerAccount.put(login, n - 1);
+            }
+        }
+    }
+
+    private void decrementIp(InetAddress ip) {
+        if (MAX_SESSIONS_PER_IP <= 0) {
+            return;
+        }
+        synchronized (mPerIp) {
+            Integer n = mPerIp.get(ip);
+            if (n == null || n <= 1) {
+                mPerIp.remove(ip);
+            } else {
+                mPerIp.put(ip, n - 1);
+            }
+        }
+    }
+
+    /**
+     * @return the reply for a connection tryAdmit() did not let in
+     */
+    static String rejectReply(int decision) {
+        return decision == REJECTED_IP ? "421 Too many connections from your IP, try again later."
+                : "421 Too many users, try again later.";
+    }
+
+    /**
+     * Tell a connection tryAdmit() did not let in why, and close it
+     */
+    static void reject(Socket s, int decision) {
+        try {
+            OutputStream out = s.getOutputStream();
+            out.write((rejectReply(decision) + "\r\n").getBytes());
+            out.flush();
+        } catch (IOException e) {
+            // it's leaving anyway
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    long getRejectedFull() {
+        return mRejectedFull.get();
+    }
+
+    long getRejectedIp() {
+        return mRejectedIp.get();
+    }
+
+    long getRejectedAccount() {
+        return mRejectedAccount.get();
+    }
+
+    public String oneLineInfo() {
+        return "max " + limit(MAX_SESSIONS) + " (" + limit(MAX_SESSIONS_PER_IP) + " per IP, " + limit(MAX_SESSIONS_PER_ACCOUNT)
+                + " per account), queued: " + Math.max(0, mQueued.get()) + "/" + QUEUE_SIZE
+                + ", rejected full: " + mRejectedFull + " ip: " + mRejectedIp + " account: " + mRejectedAccount
+                + ", queue timeouts: " + mQueueTimeouts;
+    }
+
+    private static String limit(int max) {
+        return max > 0 ? String.valueOf(max) : "unlimited";
+    }
+}
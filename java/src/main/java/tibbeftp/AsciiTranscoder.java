@@ -0,0 +1,68 @@
+package tibbeftp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Line ending conversion for TYPE A transfers, straight on the bytes without decoding them.
+ * Files are stored with LF, the data connection carries CRLF. One instance converts one
+ * transfer in one direction and remembers a CR split from its LF by a buffer boundary.
+ *
+ * @author jesper
+ */
+public class AsciiTranscoder {
+    private static final byte CR = 13;
+    private static final byte LF = 10;
+
+    private boolean mCr = false;
+
+    /**
+     * File to network: LF becomes CRLF, a CRLF already in the file is left alone
+     *
+     * @param in all its remaining bytes are converted
+     * @param out room for at least 2 * in.remaining() bytes
+     */
+    public void toNetwork(ByteBuffer in, ByteBuffer out) {
+        boolean cr = mCr;
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == LF && !cr) {
+                out.put(CR);
+            }
+            out.put(b);
+            cr = b == CR;
+        }
+        mCr = cr;
+    }
+
+    /**
+     * Network to file: CRLF becomes LF, a CR on its own is kept. A CR at the end of in is held
+     * back until the next call (or finish()) shows what follows it.
+     *
+     * @param in all its remaining bytes are converted
+     * @param out room for at least in.remaining() + 1 bytes
+     */
+    public void toLocal(ByteBuffer in, ByteBuffer out) {
+        boolean cr = mCr;
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (cr && b != LF) {
+                out.put(CR);
+            }
+            cr = b == CR;
+            if (!cr) {
+                out.put(b);
+            }
+        }
+        mCr = cr;
+    }
+
+    /**
+     * End of a network to file transfer, puts a CR held back by toLocal() in out
+     */
+    public void finish(ByteBuffer out) {
+        if (mCr) {
+            mCr = false;
+            out.put(CR);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package tibbeftp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transfer rate limits from limits.txt in the ftp-base, re-read when the file changes (checked at
+ * most once per second). Lines are
+ * <pre>
+ * global  &lt;KB/s&gt;            all transfers together
+ * session &lt;KB/s&gt;            each session
+ * account &lt;KB/s&gt;            each account, all its sessions together
+ * account &lt;login&gt; &lt;KB/s&gt;    overrides the above for one account
+ * </pre>
+ * 0 or no line means no limit. A transfer draws from the global, account and session buckets, so
+ * it runs at the lowest of them, and transfers in the same bucket share it evenly.
+ *
+ * @author jesper
+ */
+public class Bandwidth {
+    private static final long STAT_INTERVAL_MILLIS = 1000;
+    /**
+     * Bytes a transfer moves between looks at the limits while none applies to it
+     */
+    private static final int UNLIMITED_CHUNK = 4 * 1024 * 1024;
+
+    /**
+     * One version of limits.txt
+     */
+    private static class Limits {
+        static final Limits NONE = new Limits(0, 0, 0, Collections.<String, Long>emptyMap(), 0, 0);
+
+        final long mGlobal;
+        final long mSession;
+        final long mAccount;
+        final Map<String, Long> mAccounts;
+        final long mLastModified;
+        final long mLength;
+
+        Limits(long global, long session, long account, Map<String, Long> accounts, long lastModified, long length) {
+            mGlobal = global;
+            mSession = session;
+            mAccount = account;
+            mAccounts = accounts;
+            mLastModified = lastModified;
+            mLength = length;
+        }
+
+        long account(String login) {
+            Long rate = login == null ? null : mAccounts.get(login);
+            return rate == null ? mAccount : rate;
+        }
+
+        boolean limits(String login) {
+            return mGlobal > 0 || mSession > 0 || account(login) > 0;
+        }
+    }
+
+    private volatile Limits mLimits = Limits.NONE;
+    private volatile long mNextStat = 0;
+    private final TokenBucket mGlobal = new TokenBucket();
+    private final Map<String, TokenBucket> mAccounts = new ConcurrentHashMap<>();
+    private final AtomicInteger mTransfers = new AtomicInteger();
+    private final LongAdder mWaitNanos = new LongAdder();
+
+    /**
+     * @param session the session's own bucket
+     * @param login the account, null before login
+     * @return a throttle for one transfer, also when no limit applies yet, so that a limit added
+     * to limits.txt later slows down the transfers already running
+     */
+    public Throttle newThrottle(TokenBucket session, String login) {
+        TokenBucket account = null;
+        if (login != null) {
+            account = mAccounts.get(login);
+            if (account == null) {
+                mAccounts.putIfAbsent(login, new TokenBucket());
+                account = mAccounts.get(login);
+            }
+        }
+        return new Throttle(session, account, login);
+    }
+
+    public String oneLineInfo() {
+        Limits limits = current();
+        if (limits == Limits.NONE) {
+            return "no limits";
+        }
+        return "global " + rate(limits.mGlobal) + ", account " + rate(limits.mAccount)
+                + (limits.mAccounts.isEmpty() ? "" : " " + limits.mAccounts + " KB/s") + ", session " + rate(limits.mSession)
+                + ", transfers: " + mTransfers + ", waited: " + mWaitNanos.sum() / 1000000 + " ms";
+    }
+
+    private static String rate(long kBps) {
+        return kBps == 0 ? "unlimited" : kBps + " KB/s";
+    }
+
+    /**
+     * @return the limits, re-read if limits.txt has changed
+     */
+    private Limits current() {
+        long now = System.currentTimeMillis();
+        if (now < mNextStat) {
+            return mLimits;
+        }
+        synchronized (this) {
+            if (now < mNextStat) {
+                return mLimits;
+            }
+            mNextStat = now + STAT_INTERVAL_MILLIS;
+            File f = new File(Main.getFtpHome(), "limits.txt");
+            Limits old = mLimits;
+            if (!f.exists()) {
+                mLimits = Limits.NONE;
+            } else if (old.mLastModified != f.lastModified() || old.mLength != f.length()) {
+                Limits read = read(f);
+                if (read != null) {
+                    mLimits = read;
+                    Logger.logToConsole("Bandwidth limits: " + oneLineInfo());
+                }
+            }
+            return mLimits;
+        }
+    }
+
+    /**
+     * @return the limits in the file, null if it could not be read
+     */
+    private static Limits read(File f) {
+        long lastModified = f.lastModified();
+        long length = f.length();
+        long global = 0;
+        long session = 0;
+        long account = 0;
+        Map<String, Long> accounts = new HashMap<>();
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(f)));
+            String tmp;
+            while ((tmp = in.readLine()) != null) {
+                if (tmp.trim().startsWith("#") || tmp.trim().length() == 0) {
+                    continue;
+                }
+                StringTokenizer st = new StringTokenizer(tmp);
+                String kind = st.nextToken();
+                try {
+                    if (kind.equals("global") && st.countTokens() == 1) {
+                        global = Long.parseLong(st.nextToken());
+                    } else if (kind.equals("session") && st.countTokens() == 1) {
+                        session = Long.parseLong(st.nextToken());
+                    } else if (kind.equals("account") && st.countTokens() == 1) {
+                        account = Long.parseLong(st.nextToken());
+                    } else if (kind.equals("account") && st.countTokens() == 2) {
+                        String login = st.nextToken();
+                        accounts.put(login, Long.parseLong(st.nextToken()));
+                    } else {
+                        System.out.println("Wrong line in file: " + tmp);
+                    }
+                } catch (NumberFormatException e) {
+                    System.out.println("Wrong line in file: " + tmp);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+            }
+        }
+        return new Limits(global, session, account, accounts, lastModified, length);
+    }
+
+    /**
+     * Paces one transfer. Rates are looked up on every call, so a reload applies to running
+     * transfers too. While no limit applies, acquire() only checks for one.
+     */
+    public class Throttle {
+        private final TokenBucket mSession;
+        private final TokenBucket mAccount;
+        private final String mLogin;
+
+        Throttle(TokenBucket session, TokenBucket account, String login) {
+            mSession = session;
+            mAccount = account;
+            mLogin = login;
+            mTransfers.incrementAndGet();
+        }
+
+        /**
+         * @return how many bytes to move between calls to acquire(), small enough to keep the
+         * pace smooth at the lowest rate
+         */
+        public int chunkSize() {
+            Limits limits = current(); // the same limits as the acquire() that follows
+            if (!limits.limits(mLogin)) {
+                return UNLIMITED_CHUNK;
+            }
+            long lowest = Long.MAX_VALUE;
+            for (long rate : new long[]{limits.mGlobal, limits.mSession, limits.account(mLogin)}) {
+                if (rate > 0) {
+                    lowest = Math.min(lowest, rate);
+                }
+            }
+            // about 1/8 s at the lowest rate
+            return (int) Math.max(4096, Math.min(64 * 1024, lowest * 1024 / 8));
+        }
+
+        /**
+         * Wait until bytes may be sent (or have been received)
+         */
+        public void acquire(long bytes) throws IOException {
+            Limits limits = current();
+            if (!limits.limits(mLogin)) {
+                return;
+            }
+            mSession.setRate(limits.mSession);
+            pace(mSession, bytes);
+            if (mAccount != null) {
+                mAccount.setRate(limits.account(mLogin));
+                pace(mAccount, bytes);
+            }
+            mGlobal.setRate(limits.mGlobal);
+            pace(mGlobal, bytes); // last, so that capacity shared with others is only taken when we are ready
+        }
+
+        private void pace(TokenBucket bucket, long bytes) throws IOException {
+            long wait = bucket.reserve(bytes);
+            if (wait <= 0) {
+                return;
+            }
+            mWaitNanos.add(wait);
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while throttled");
+            }
+        }
+
+        /**
+         * The transfer is over
+         */
+        public void close() {
+            mTransfers.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package tibbeftp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide pool of I/O buffers in a few size classes (4, 16, 64 and 256 KB), so that
+ * transfers and replies don't allocate new ones all the time. Direct buffers are for channel
+ * I/O, heap buffers for the stream APIs that want a byte[]. Each thread keeps one buffer per
+ * class and kind for itself, the rest are shared. At most BUFFER_POOL_MB are kept idle.
+ * <p>
+ * Sessions on virtual threads don't cache per thread, there are too many of them and they don't
+ * live long.
+ *
+ * @author jesper
+ */
+public class BufferPool {
+    public static final long MAX_IDLE_BYTES;
+
+    static {
+        String mb = System.getenv("BUFFER_POOL_MB");
+        MAX_IDLE_BYTES = (mb == null ? 64 : Long.parseLong(mb)) * 1024 * 1024;
+    }
+
+    private static final int[] SIZES = {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024};
+    private static final int MAX_SIZE = SIZES[SIZES.length - 1];
+
+    private final List<ArrayDeque<ByteBuffer>> mShared = new ArrayList<>(SIZES.length * 2);
+    private final ThreadLocal<ByteBuffer[]> mThreadCache = new ThreadLocal<ByteBuffer[]>() {
+        @Override
+        protected ByteBuffer[] initialValue() {
+            return new ByteBuffer[SIZES.length * 2];
+        }
+    };
+    private final boolean mCachePerThread;
+    private final LongAdder mLeases = new LongAdder();
+    private final LongAdder mHits = new LongAdder();
+    private final AtomicLong mInUseBytes = new AtomicLong();
+    private final AtomicLong mIdleBytes = new AtomicLong();
+
+    /**
+     * @param cachePerThread false when sessions run on virtual threads
+     */
+    public BufferPool(boolean cachePerThread) {
+        mCachePerThread = cachePerThread;
+        for (int i = 0; i < SIZES.length * 2; i++) {
+            mShared.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    /**
+     * @return a cleared direct buffer of at least size bytes, give it back with release()
+     */
+    public ByteBuffer lease(int size) {
+        return lease(size, true);
+    }
+
+    /**
+     * @return a cleared heap buffer (with an array) of at least size bytes, give it back with
+     * release()
+     */
+    public ByteBuffer leaseHeap(int size) {
+        return lease(size, false);
+    }
+
+    private ByteBuffer lease(int size, boolean direct) {
+        mLeases.increment();
+        int slot = slot(size, direct);
+        if (slot < 0) {
+            return allocate(size, direct); // too big to pool
+        }
+        ByteBuffer buf = null;
+        if (mCachePerThread) {
+            ByteBuffer[] cache = mThreadCache.get();
+            buf = cache[slot];
+            cache[slot] = null;
+        }
+        if (buf == null) {
+            ArrayDeque<ByteBuffer> shared = mShared.get(slot);
+            synchronized (shared) {
+                buf = shared.poll();
+            }
+        }
+        if (buf == null) {
+            buf = allocate(SIZES[slot % SIZES.length], direct);
+        } else {
+            mHits.increment();
+            mIdleBytes.addAndGet(-buf.capacity());
+        }
+        mInUseBytes.addAndGet(buf.capacity());
+        buf.clear();
+        return buf;
+    }
+
+    private ByteBuffer allocate(int size, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Give back a buffer from lease() or leaseHeap(), null is ignored
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null) {
+            return;
+        }
+        int slot = buf.capacity() > MAX_SIZE ? -1 : slot(buf.capacity(), buf.isDirect());
+        if (slot < 0 || SIZES[slot % SIZES.length] != buf.capacity()) {
+            return; // not one of ours
+        }
+        mInUseBytes.addAndGet(-buf.capacity());
+        if (mCachePerThread) {
+            ByteBuffer[] cache = mThreadCache.get();
+            // the thread caches count against BUFFER_POOL_MB as well
+            if (cache[slot] == null && mIdleBytes.get() + buf.capacity() <= MAX_IDLE_BYTES) {
+                cache[slot] = buf;
+                mIdleBytes.addAndGet(buf.capacity());
+                return;
+            }
+        }
+        releaseShared(buf, slot);
+    }
+
+    private void releaseShared(ByteBuffer buf, int slot) {
+        if (mIdleBytes.get() + buf.capacity() > MAX_IDLE_BYTES) {
+            return; // let the GC have it
+        }
+        ArrayDeque<ByteBuffer> shared = mShared.get(slot);
+        synchronized (shared) {
+            shared.push(buf);
+        }
+        mIdleBytes.addAndGet(buf.capacity());
+    }
+
+    /**
+     * Move the calling thread's cached buffers to the shared pool, before the thread ends
+     */
+    public void releaseThreadCache() {
+        if (!mCachePerThread) {
+            return;
+        }
+        ByteBuffer[] cache = mThreadCache.get();
+        mThreadCache.remove();
+        for (int slot = 0; slot < cache.length; slot++) {
+            if (cache[slot] != null) {
+                mIdleBytes.addAndGet(-cache[slot].capacity());
+                releaseShared(cache[slot], slot);
+            }
+        }
+    }
+
+    /**
+     * @return the size class for size, heap classes after the direct ones, -1 if too big
+     */
+    private static int slot(int size, boolean direct) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (size <= SIZES[i]) {
+                return direct ? i : SIZES.length + i;
+            }
+        }
+        return -1;
+    }
+
+    public long getLeases() {
+        return mLeases.sum();
+    }
+
+    public long getHits() {
+        return mHits.sum();
+    }
+
+    public long getInUseBytes() {
+        return mInUseBytes.get();
+    }
+
+    public long getIdleBytes() {
+        return mIdleBytes.get();
+    }
+
+    public String oneLineInfo() {
+        long leases = getLeases();
+        return "in use: " + getInUseBytes() / 1024 + " KB, idle: " + getIdleBytes() / 1024 + "/" + MAX_IDLE_BYTES / 1024
+                + " KB, leases: " + leases + " hit rate: " + (leases == 0 ? "-" : Utils.maxDec(getHits() * 100.0 / leases, 1) + "%");
+    }
+}
@@ -0,0 +1,370 @@
+package tibbeftp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * File checksums for HASH and XCRC/XMD5/XSHA1/XSHA256, so clients can verify a transfer without
+ * downloading the file again. Whole file results are remembered in hashes.txt in the ftp-base,
+ * keyed by canonical path, size and modification time, so an unchanged file is only read once
+ * (also across restarts). Ranges are always computed.
+ * <p>
+ * New results are appended to the index outside the cache lock, by whichever session finds the
+ * index free, so lookups never wait for the file. When most of its lines are outdated it's
+ * rewritten with only the current ones.
+ *
+ * @author jesper
+ */
+public class Checksums {
+    /**
+     * Max number of files remembered, HASH_CACHE_ENTRIES, 0 disables the cache
+     */
+    public static final int MAX_ENTRIES;
+    /**
+     * HASH_ON_UPLOAD, hash uploads while they are written so a following HASH is free
+     */
+    public static final boolean HASH_ON_UPLOAD = "true".equals(System.getenv("HASH_ON_UPLOAD"));
+
+    static {
+        String entries = System.getenv("HASH_CACHE_ENTRIES");
+        MAX_ENTRIES = entries == null ? 100000 : Integer.parseInt(entries);
+    }
+
+    private static final String INDEX_FILE = "hashes.txt";
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    public enum Algorithm {
+        CRC32("CRC32"),
+        MD5("MD5"),
+        SHA_1("SHA-1"),
+        SHA_256("SHA-256");
+
+        final String mName;
+
+        Algorithm(String name) {
+            mName = name;
+        }
+
+        /**
+         * @return the algorithm for a HASH name (case insensitive, SHA256 works too), null if unknown
+         */
+        static Algorithm lookup(String name) {
+            for (Algorithm a : values()) {
+                if (a.mName.equalsIgnoreCase(name) || a.mName.replace("-", "").equalsIgnoreCase(name)) {
+                    return a;
+                }
+            }
+            return null;
+        }
+
+        Digest newDigest() {
+            return new Digest(this);
+        }
+    }
+
+    /**
+     * A running checksum of one of the algorithms
+     */
+    static class Digest {
+        private final MessageDigest mDigest; // null for CRC32
+        private final CRC32 mCrc;
+
+        private Digest(Algorithm algorithm) {
+            if (algorithm == Algorithm.CRC32) {
+                mDigest = null;
+                mCrc = new CRC32();
+            } else {
+                try {
+                    mDigest = MessageDigest.getInstance(algorithm.mName);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(algorithm.mName + " is missing in this JVM", e);
+                }
+                mCrc = null;
+            }
+        }
+
+        /**
+         * Add the remaining bytes of buf, its position is left at the limit
+         */
+        void update(ByteBuffer buf) {
+            if (mCrc != null) {
+                mCrc.update(buf);
+            } else {
+                mDigest.update(buf);
+            }
+        }
+
+        /**
+         * @return the checksum in lower case hex
+         */
+        String hex() {
+            if (mCrc != null) {
+                return String.format("%08x", mCrc.getValue());
+            }
+            byte[] hash = mDigest.digest();
+            StringBuilder ret = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                ret.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return ret.toString();
+        }
+    }
+
+    /**
+     * The checksum of one version of a file
+     */
+    private static class Hashed {
+        final long mLength;
+        final long mLastModified;
+        final String mHash;
+
+        Hashed(long length, long lastModified, String hash) {
+            mLength = length;
+            mLastModified = lastModified;
+            mHash = hash;
+        }
+    }
+
+    private final BufferPool mPool;
+    private final Map<String, Hashed> mEntries = new LinkedHashMap<String, Hashed>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Hashed> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean mLoaded = false;
+    private final ConcurrentLinkedQueue<String> mUnwritten = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock mIndexLock = new ReentrantLock(); // held while the index file is written
+    private volatile int mIndexLines = 0;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mComputed = new AtomicLong();
+    private final AtomicLong mBytesRead = new AtomicLong();
+
+    public Checksums(BufferPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * @param start first byte
+     * @param end byte after the last one, -1 for the end of the file
+     * @return the checksum of f from start to end in hex, from the cache if it's the whole
+     * unchanged file
+     */
+    public String hash(File f, Algorithm algorithm, long start, long end) throws IOException {
+        long length = f.length();
+        long lastModified = f.lastModified();
+        boolean whole = start == 0 && (end < 0 || end >= length);
+        String key = null;
+        if (whole && MAX_ENTRIES > 0) {
+            key = key(f, algorithm);
+            synchronized (this) {
+                load();
+                Hashed e = mEntries.get(key);
+                if (e != null && e.mLength == length && e.mLastModified == lastModified) {
+                    mHits.incrementAndGet();
+                    return e.mHash;
+                }
+            }
+        }
+
+        Digest digest = algorithm.newDigest();
+        ByteBuffer buf = mPool.lease(READ_BUFFER_SIZE);
+        try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long pos = start;
+            long stop = end < 0 ? Long.MAX_VALUE : end;
+            while (pos < stop) {
+                buf.clear();
+                if (stop - pos < buf.capacity()) {
+                    buf.limit((int) (stop - pos));
+                }
+                int read = fc.read(buf, pos);
+                if (read == -1) {
+                    break;
+                }
+                pos += read;
+                buf.flip();
+                digest.update(buf);
+            }
+            mBytesRead.addAndGet(pos - start);
+        } finally {
+            mPool.release(buf);
+        }
+        mComputed.incrementAndGet();
+
+        String hash = digest.hex();
+        if (key != null && f.length() == length && f.lastModified() == lastModified) {
+            remember(key, new Hashed(length, lastModified, hash));
+            writeIndex();
+        }
+        return hash;
+    }
+
+    /**
+     * Remember the checksum of a file computed elsewhere (while it was uploaded)
+     */
+    public void put(File f, Algorithm algorithm, String hash) {
+        if (MAX_ENTRIES > 0) {
+            String key;
+            try {
+                key = key(f, algorithm);
+            } catch (IOException e) {
+                return; // computed again when asked for
+            }
+            synchronized (this) {
+                load();
+                remember(key, new Hashed(f.length(), f.lastModified(), hash));
+            }
+            writeIndex();
+        }
+    }
+
+    private static String key(File f, Algorithm algorithm) throws IOException {
+        return algorithm.mName + "\t" + f.getCanonicalPath();
+    }
+
+    /**
+     * Cache a result and queue its index line, writeIndex() must be called after leaving the lock
+     */
+    private synchronized void remember(String key, Hashed e) {
+        mEntries.put(key, e);
+        if (key.indexOf('\n') >= 0 || key.indexOf('\r') >= 0) {
+            return; // can't be a line in the index
+        }
+        mUnwritten.add(line(key, e));
+    }
+
+    /**
+     * Append the queued lines to the index, unless another session is already doing it. It checks
+     * the queue again before it lets go of the index, so no line is left behind.
+     */
+    private void writeIndex() {
+        while (!mUnwritten.isEmpty() && mIndexLock.tryLock()) {
+            try {
+                File f = indexFile();
+                try (Writer w = new OutputStreamWriter(new FileOutputStream(f, true), StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = mUnwritten.poll()) != null) {
+                        w.write(line);
+                        mIndexLines++;
+                    }
+                } catch (IOException ex) {
+                    Logger.logToConsole("Failed to update " + INDEX_FILE + ": " + ex);
+                }
+                Map<String, Hashed> current;
+                synchronized (this) {
+                    if (!isOutdated(mIndexLines, mEntries.size())) {
+                        continue;
+                    }
+                    current = new LinkedHashMap<>(mEntries);
+                }
+                compact(f, current);
+            } finally {
+                mIndexLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return true when most lines of the index are outdated and it should be rewritten
+     */
+    private static boolean isOutdated(int lines, int entries) {
+        return lines > 2 * entries + 1000;
+    }
+
+    /**
+     * @return one line of the index: algorithm, size, modification time, checksum and path
+     */
+    private static String line(String key, Hashed e) {
+        int tab = key.indexOf('\t');
+        return key.substring(0, tab) + "\t" + e.mLength + "\t" + e.mLastModified + "\t" + e.mHash + "\t" + key.substring(tab + 1) + "\n";
+    }
+
+    private File indexFile() {
+        return new File(Main.getFtpHome(), INDEX_FILE);
+    }
+
+    /**
+     * Read the index the first time it's needed. Later lines replace earlier ones for the same
+     * file, when most lines are outdated the file is rewritten with only the current ones.
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        File f = indexFile();
+        if (!f.isFile()) {
+            return;
+        }
+        int lines = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                lines++;
+                String[] parts = line.split("\t", 5);
+                if (parts.length == 5) {
+                    try {
+                        mEntries.put(parts[0] + "\t" + parts[4], new Hashed(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+                    } catch (NumberFormatException e) {
+                        // skip a broken line
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Logger.logToConsole("Failed to read " + f + ": " + e);
+            return;
+        }
+        mIndexLines = lines;
+        if (isOutdated(lines, mEntries.size())) {
+            compact(f, mEntries);
+        }
+    }
+
+    /**
+     * Rewrite the index with only the given entries
+     */
+    private void compact(File f, Map<String, Hashed> entries) {
+        File tmp = new File(f.getPath() + ".tmp");
+        try {
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Hashed> e : entries.entrySet()) {
+                    w.write(line(e.getKey(), e.getValue()));
+                }
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            mIndexLines = entries.size();
+        } catch (IOException e) {
+            Logger.logToConsole("Failed to compact " + f + ": " + e);
+            tmp.delete();
+        }
+    }
+
+    public String oneLineInfo() {
+        int entries;
+        synchronized (this) {
+            entries = mEntries.size();
+        }
+        return (MAX_ENTRIES > 0 ? "files: " + entries + "/" + MAX_ENTRIES + ", hits: " + mHits + ", " : "")
+                + "computed: " + mComputed + " (" + mBytesRead.get() / (1024 * 1024) + " MB read)";
+    }
+}
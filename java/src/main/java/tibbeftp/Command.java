@@ -0,0 +1,125 @@
+package tibbeftp;
+
+/**
+ * The control connection verbs. Recognized straight from the received bytes, without creating
+ * strings, through a small open addressing table keyed by the upper cased verb packed in a long.
+ *
+ * @author jesper
+ */
+public enum Command {
+    // Allowed before login
+    QUIT(false, false),
+    FEAT(false, false),
+    SYST(false, false),
+    INFOSYS(false, false),
+    OPTS(false, false),
+    NOOP(false, false),
+    USER(false, false),
+    PASS(false, false),
+    // Needs login
+    PORT(true, false),
+    PASV(true, false),
+    MKD(true, true),
+    CWD(true, true),
+    CDUP(true, false),
+    LIST(true, false),
+    NLST(true, false),
+    SIZE(true, true),
+    DELE(true, true),
+    RM(true, true),
+    RMD(true, true),
+    MDTM(true, true),
+    RNFR(true, true),
+    RNTO(true, true),
+    REST(true, true),
+    RETR(true, false),
+    APPE(true, true),
+    STOR(true, true),
+    TYPE(true, true),
+    MODE(true, true),
+    PWD(true, false),
+    XPWD(true, false),
+    MLSD(true, false),
+    MLST(true, false),
+    HASH(true, true),
+    RANG(true, true),
+    XCRC(true, true),
+    XMD5(true, true),
+    XSHA1(true, true),
+    XSHA256(true, true);
+
+    private static final int MAX_VERB_LENGTH = 8; // a verb must fit in a long
+    private static final int TABLE_BITS = 7;
+    private static final long[] KEYS = new long[1 << TABLE_BITS];
+    private static final Command[] COMMANDS = new Command[1 << TABLE_BITS];
+
+    static {
+        for (Command c : values()) {
+            byte[] verb = c.name().getBytes();
+            long key = pack(verb, 0, verb.length);
+            int slot = slot(key);
+            while (COMMANDS[slot] != null) {
+                slot = (slot + 1) & (KEYS.length - 1);
+            }
+            KEYS[slot] = key;
+            COMMANDS[slot] = c;
+        }
+    }
+
+    /**
+     * true if the command is refused with 530 before login
+     */
+    final boolean requiresLogin;
+    /**
+     * true if the command is not understood without an argument
+     */
+    final boolean requiresArg;
+
+    Command(boolean requiresLogin, boolean requiresArg) {
+        this.requiresLogin = requiresLogin;
+        this.requiresArg = requiresArg;
+    }
+
+    /**
+     * @return the command for the (case insensitive) verb in buf, or null if unknown
+     */
+    public static Command lookup(byte[] buf, int off, int len) {
+        long key = pack(buf, off, len);
+        if (key == 0) {
+            return null;
+        }
+        int slot = slot(key);
+        while (COMMANDS[slot] != null) {
+            if (KEYS[slot] == key) {
+                return COMMANDS[slot];
+            }
+            slot = (slot + 1) & (KEYS.length - 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return the upper cased ASCII letters and digits of the verb, one per byte, or 0 if it can't
+     * be a verb
+     */
+    private static long pack(byte[] buf, int off, int len) {
+        if (len == 0 || len > MAX_VERB_LENGTH) {
+            return 0;
+        }
+        long key = 0;
+        for (int i = off; i < off + len; i++) {
+            int b = buf[i];
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            } else if ((b < 'A' || b > 'Z') && (b < '0' || b > '9')) {
+                return 0;
+            }
+            key = (key << 8) | b;
+        }
+        return key;
+    }
+
+    private static int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - TABLE_BITS));
+    }
+}
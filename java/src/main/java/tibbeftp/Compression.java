@@ -0,0 +1,155 @@
+package tibbeftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * MODE Z: the data connection carries a zlib (deflate) stream instead of the raw bytes. Files that
+ * are already compressed are sent as stored deflate blocks, which every client can still read,
+ * without spending CPU on trying to shrink them.
+ *
+ * @author jesper
+ */
+public class Compression {
+    /**
+     * Default level for MODE Z, DEFLATE_LEVEL 1 (fast) to 9 (small), OPTS MODE Z LEVEL changes it
+     * for a session
+     */
+    public static final int DEFAULT_LEVEL;
+
+    static {
+        String level = System.getenv("DEFLATE_LEVEL");
+        DEFAULT_LEVEL = level == null ? 6 : Integer.parseInt(level);
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SAMPLE_SIZE = 4096;
+    private static final double COMPRESSED_BITS_PER_BYTE = 7.5;
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "z",
+            "jar", "war", "apk", "docx", "xlsx", "pptx", "odt", "ods",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "m4a", "mkv", "avi", "mov", "ogg", "flac", "pdf"));
+
+    /**
+     * Deflates everything written to it. close() finishes the zlib stream and closes the data
+     * connection, end() only frees the native memory and the buffer (after a failed transfer).
+     */
+    static class DeflatingOutputStream extends DeflaterOutputStream {
+        private final BufferPool mPool;
+        private ByteBuffer mLease;
+
+        DeflatingOutputStream(OutputStream out, int level, BufferPool pool) {
+            super(out, new Deflater(level), 1);
+            mPool = pool;
+            mLease = pool.leaseHeap(BUFFER_SIZE);
+            buf = mLease.array();
+        }
+
+        /**
+         * @return compressed bytes produced so far
+         */
+        long getBytesWritten() {
+            return def.getBytesWritten();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                end();
+            }
+        }
+
+        void end() {
+            if (mLease == null) {
+                return; // already ended
+            }
+            def.end();
+            mPool.release(mLease);
+            mLease = null;
+        }
+    }
+
+    /**
+     * Inflates the zlib stream read from the data connection
+     */
+    static class InflatingInputStream extends InflaterInputStream {
+        private final BufferPool mPool;
+        private ByteBuffer mLease;
+
+        InflatingInputStream(InputStream in, BufferPool pool) {
+            super(in, new Inflater(), 1);
+            mPool = pool;
+            mLease = pool.leaseHeap(BUFFER_SIZE);
+            buf = mLease.array();
+        }
+
+        /**
+         * @return compressed bytes consumed so far
+         */
+        long getBytesRead() {
+            return inf.getBytesRead();
+        }
+
+        void end() {
+            inf.end();
+            mPool.release(mLease);
+            mLease = null;
+        }
+    }
+
+    /**
+     * @param level the session's MODE Z level
+     * @return the level to send the file with, Deflater.NO_COMPRESSION if it looks compressed
+     * already (by its extension or the entropy of a sample at start)
+     */
+    static int levelFor(File f, long start, int level) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase())) {
+            return Deflater.NO_COMPRESSION;
+        }
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int n = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.seek(Math.max(start, 0));
+            int read;
+            while (n < sample.length && (read = raf.read(sample, n, sample.length - n)) != -1) {
+                n += read;
+            }
+        } catch (IOException e) {
+            return level; // the transfer will report it
+        }
+        return n == SAMPLE_SIZE && entropy(sample, n) > COMPRESSED_BITS_PER_BYTE ? Deflater.NO_COMPRESSION : level;
+    }
+
+    /**
+     * @return Shannon entropy of the bytes in bits per byte, 8 for random data
+     */
+    static double entropy(byte[] buf, int len) {
+        int[] counts = new int[256];
+        for (int i = 0; i < len; i++) {
+            counts[buf[i] & 0xff]++;
+        }
+        double bits = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / len;
+                bits -= p * Math.log(p);
+            }
+        }
+        return bits / Math.log(2);
+    }
+}
@@ -1,10 +1,27 @@
 package tibbeftp;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -16,7 +33,7 @@ import java.util.TimeZone;
  *
  * @author Jesper Tiberg
  */
-public class ConnectionHandler extends Thread {
+public class ConnectionHandler implements Runnable {
 
     enum TransferMode {
         TEXT, BINARY
@@ -27,7 +44,9 @@ public class ConnectionHandler extends Thread {
     private final Socket mSocket;
     private final OutputStream mSockOut;
     private final InputStream sockIn;
+    private final NioControlServer.Session mNioSession; // null when running thread-per-connection
     private boolean clientQuit = false;
+    private boolean closed = false;
 
     private FakeRoot mFakeRoot = null;
     private Account mAccount = null;
@@ -37,6 +56,7 @@ public class ConnectionHandler extends Thread {
     private boolean mPasv = false;
     private int mDataPort = -1;
     private ServerSocket mServerSocketData = null;
+    private SharedPassiveListener.Ticket mPasvTicket = null; // instead of mServerSocketData in shared mode
     private long mRest = 0;
     private String mRnfr = null;
 
@@ -46,15 +66,32 @@ public class ConnectionHandler extends Thread {
     private boolean loggedIn = false;
     private String username = null;
     private TransferMode transferMode = TransferMode.TEXT;
+    private boolean mModeZ = false; // deflate the data connection
+    private int mDeflateLevel = Compression.DEFAULT_LEVEL;
+    private Checksums.Algorithm mHashAlgorithm = Checksums.Algorithm.SHA_256; // OPTS HASH changes it
+    private long mRangStart = 0; // RANG for the next HASH, mRangEnd is -1 when not set
+    private long mRangEnd = -1;
 
     private String mCurrentEncoding = "UTF-8";
+    private final DateFormat mUtcTimeFormat = new SimpleDateFormat("yyyyMMddHHmmss");
     private static final int SESSION_TIMEOUT_MILLIS = 12 * 60 * 60000; // timeout 12 hours
+    private static final int PASV_ALLOCATE_TIMEOUT_MILLIS = 10000; // wait for a free passive port
+    private static final int MAX_QUEUED_REPLY_BYTES = 8192;
+    private static final byte[] CRLF = {13, 10};
+    private static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+    private ByteBuffer mReplies = null; // leased from the buffer pool until flushed
+    private CharsetEncoder mReplyEncoder = null;
+    private String mReplyEncoding = null; // mCurrentEncoding when mReplyEncoder was made
+    private final TokenBucket mSessionBucket = new TokenBucket(); // per session rate limit
+    private boolean mQueued = false; // waiting for a session slot (Admission)
+    private boolean mHoldsSlot = false;
+    private String mCountedLogin = null; // counted against the account's session limit
 
-    public ConnectionHandler(ThreadGroup tg, MyFTP myftp, Socket s) throws IOException {
-        super(tg, "Connection_" + s.getInetAddress());
+    public ConnectionHandler(MyFTP myftp, Socket s) throws IOException {
         logger = new Logger(s.getInetAddress().getHostAddress());
 
         mStartTime = System.currentTimeMillis();
+        mUtcTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
         mMyFTP = myftp;
         mSocket = s;
         mSocket.setSoTimeout(SESSION_TIMEOUT_MILLIS);
@@ -63,24 +100,97 @@ public class ConnectionHandler extends Thread {
         mMyIP = Utils.getMyIpString(s);
         sockIn = mSocket.getInputStream();
         mSockOut = mSocket.getOutputStream();
+        mNioSession = null;
 
         logger.info("Connection from " + s.getInetAddress() + " server IP is " + mMyIP);
     }
 
+    /**
+     * Creates a handler driven by the NIO engine. run() is never called, the selector
+     * feeds command lines to processLine() from a worker pool instead.
+     */
+    ConnectionHandler(MyFTP myftp, Socket s, NioControlServer.Session session) {
+        logger = new Logger(s.getInetAddress().getHostAddress());
+
+        mStartTime = System.currentTimeMillis();
+        mUtcTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        mMyFTP = myftp;
+        mSocket = s;
+        mNioSession = session;
+        mNioSession.setIdleTimeout(SESSION_TIMEOUT_MILLIS);
+
+        // Determine this IP address
+        mMyIP = Utils.getMyIpString(s);
+        sockIn = null;
+        mSockOut = session.getOutputStream();
+
+        logger.info("Connection from " + s.getInetAddress() + " server IP is " + mMyIP + " (nio)");
+    }
+
     public String oneLineInfo() {
         String ret = new Date(mStartTime) + "\t" + mSocket.getInetAddress().getHostAddress() + "\t" + mMyIP + "\t";
         if (mServerSocketData != null) {
             ret += "ssport:" + mServerSocketData.getLocalPort() + "\t";
         }
+        SharedPassiveListener.Ticket ticket = mPasvTicket;
+        if (ticket != null) {
+            ret += "sharedport:" + ticket.getPort() + "\t";
+        }
         if (mAccount != null) {
             ret += mAccount.getName() + " @ " + mFakeRoot.mRootDir.getAbsoluteFile();
         }
         return ret;
     }
 
+    /**
+     * Queue a reply. Replies are written together by flushReplies() once the client has no more
+     * commands pipelined, preliminary (1xx) replies and large batches go out at once.
+     */
     private void send(String str) throws IOException {
         logger.sendCommand(str);
-        mSockOut.write((str + "\r\n").getBytes(mCurrentEncoding));
+        if (!mCurrentEncoding.equals(mReplyEncoding)) {
+            mReplyEncoder = Charset.forName(mCurrentEncoding).newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            mReplyEncoding = mCurrentEncoding;
+        }
+        // Encode straight into the reply buffer, flushing if a long reply does not fit
+        CharBuffer chars = CharBuffer.wrap(str);
+        mReplyEncoder.reset();
+        while (mReplyEncoder.encode(chars, replyBuffer(), true).isOverflow()) {
+            flushReplies();
+        }
+        if (replyBuffer().remaining() < 2) {
+            flushReplies();
+        }
+        replyBuffer().put(CRLF);
+        if (str.startsWith("1") || mReplies.position() >= MAX_QUEUED_REPLY_BYTES) {
+            flushReplies();
+        }
+    }
+
+    private ByteBuffer replyBuffer() {
+        if (mReplies == null) {
+            mReplies = mMyFTP.getBufferPool().leaseHeap(2 * MAX_QUEUED_REPLY_BYTES);
+        }
+        return mReplies;
+    }
+
+    /**
+     * Write all queued replies to the control connection in one go
+     */
+    void flushReplies() throws IOException {
+        ByteBuffer replies = mReplies;
+        if (replies == null) {
+            return;
+        }
+        mReplies = null;
+        try {
+            if (replies.position() > 0) {
+                mSockOut.write(replies.array(), replies.arrayOffset(), replies.position());
+            }
+        } finally {
+            mMyFTP.getBufferPool().release(replies);
+        }
     }
 
     /**
@@ -104,32 +214,29 @@ public class ConnectionHandler extends Thread {
     }
 
     /**
-     * @param startR start of range for serversocket
-     * @param endR   end of range
      * @return true if serversocket exists or one was created successfully
      * @throws IOException if unable to create a serversocket
      */
-    private boolean useExistingOrCreateNewServerSocket(int startR, int endR) throws IOException {
+    private boolean useExistingOrCreateNewServerSocket() throws IOException {
         mPasv = true;
         mActive = false;
 
-        if (mServerSocketData != null) { // Serversocket already exists
+        if (mServerSocketData != null || mPasvTicket != null) { // Serversocket already exists
+            return true;
+        } else if (mMyFTP.getSharedPassive() != null) { // Wait on one of the shared ports
+            mPasvTicket = mMyFTP.getSharedPassive().newTicket(mSocket.getInetAddress());
+            mDataPort = mPasvTicket.getPort();
             return true;
         } else { // Create a serversocket
+            PassivePortAllocator ports = mMyFTP.getPassivePorts();
             // Is the range not set (0), then just take a port
-            if (startR == 0) {
-                mServerSocketData = new ServerSocket();
-            } else { // otherwise, scan for a free port in the range
-                int rangeSize = endR - startR + 1;
-                int randomIndexStart = (int) (Math.random() * rangeSize);
-                for (int i = 0; i < rangeSize; i++) {
-                    int port = ((randomIndexStart + i) % rangeSize) + startR;
-                    try {
-                        mServerSocketData = new ServerSocket(port, 1);
-                        break;
-                    } catch (IOException e) {
-                        // port probably in use, try the next in the range
-                    }
+            if (ports == null) {
+                mServerSocketData = PassivePortAllocator.openDataServerSocket(0);
+            } else { // otherwise lease one from the range, waiting in line if they are all taken
+                try {
+                    mServerSocketData = ports.lease(PASV_ALLOCATE_TIMEOUT_MILLIS);
+                } catch (InterruptedException e) {
+                    return false;
                 }
             }
             // Were we successful in creating a server socket?
@@ -143,25 +250,31 @@ public class ConnectionHandler extends Thread {
     }
 
     /**
-     * Set passive or active mode
+     * Close the passive server socket and give its port back to the range
      */
-    private void pasv(int startR, int endR) throws IOException {
-        boolean serverSocketOpened = false;
-        for (int i = 0; i < 10; i++) {
-            serverSocketOpened = useExistingOrCreateNewServerSocket(startR, endR);
-            if (serverSocketOpened) {
-                break;
+    private void closeServerSocketData() throws IOException {
+        if (mPasvTicket != null) {
+            mPasvTicket.cancel();
+            mPasvTicket = null;
+        }
+        if (mServerSocketData != null) {
+            PassivePortAllocator ports = mMyFTP.getPassivePorts();
+            if (ports != null) {
+                ports.release(mServerSocketData);
             } else {
-                Logger.logToConsole("PASV_SERVERSOCKET FAILED_ATTEMPT_TO_ALLOCATE port for " + username);
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    break;
-                }
+                mServerSocketData.close();
             }
+            mServerSocketData = null;
         }
+    }
+
+    /**
+     * Set passive or active mode
+     */
+    private void pasv() throws IOException {
+        boolean serverSocketOpened = useExistingOrCreateNewServerSocket();
         if (serverSocketOpened) {
-            int port = mServerSocketData == null ? -1 : mServerSocketData.getLocalPort();
+            int port = mDataPort;
             Logger.logToConsole("PASV_SERVERSOCKET OPEN for " + username + " Port=" + port);
             send("227 Entering Passive Mode (" + Utils.ipAndPortToFTPformat(mMyIP, mDataPort) + ").");
         } else {
@@ -178,15 +291,17 @@ public class ConnectionHandler extends Thread {
             send("425 Unable to build data connection! Neither active or passive chosen");
             throw new IOException("Neither passive or active mode set");
         }
+        // A pipelining client may wait for the PASV reply before it connects
+        flushReplies();
 
         Socket s = null;
         try {
             if (mActive) {
-                s = new Socket(mPortIP, mPortPort);
+                s = SocketChannel.open(new InetSocketAddress(mPortIP, mPortPort)).socket();
             } else if (mPasv) {
-                int port = mServerSocketData == null ? -1 : mServerSocketData.getLocalPort();
+                int port = mDataPort;
                 try {
-                    s = mServerSocketData.accept();
+                    s = mPasvTicket != null ? mPasvTicket.await(MyFTP.PASV_TIMEOUT) : mServerSocketData.accept();
                     Logger.logToConsole("PASV_SERVERSOCKET ACCEPTED " + username + " Port=" + port + " from " + s.getInetAddress());
                 } catch (SocketTimeoutException e) {
                     Logger.logToConsole("PASV_SERVERSOCKET TIMEOUT " + username + " Port=" + port);
@@ -201,17 +316,14 @@ public class ConnectionHandler extends Thread {
                 }
             }
         } finally {
-            if (mServerSocketData != null) {
-                mServerSocketData.close();
-                mServerSocketData = null;
-            }
+            closeServerSocketData();
             mPasv = false;
             mActive = false;
         }
         return s;
     }
 
-    private String getFileInfoLineForList(File f) {
+    static String getFileInfoLineForList(File f) {
         Date fDate = new Date(f.lastModified());
 
         // File access permissions
@@ -238,27 +350,55 @@ public class ConnectionHandler extends Thread {
     private boolean list() throws IOException {
         try {
             Socket s = openConnection();
-            OutputStream dataOut = s.getOutputStream();
-            send("150 OK Sending file list to " + s.getInetAddress());
-            logger.info("Sending filelist " + mFakeRoot.getCurDir() + " via " + s);
-
-            String tmp = getFileInfoLineForList(mFakeRoot.getFile("."));
-            dataOut.write(tmp.getBytes(mCurrentEncoding));
-            // List ".." only when not in root dir
-            if (!mFakeRoot.getCurDir().equals("/")) {
-                tmp = getFileInfoLineForList(mFakeRoot.getFile(".."));
-                dataOut.write(tmp.getBytes(mCurrentEncoding));
-            }
+            OutputStream dataOut = null;
+            try {
+                dataOut = listingStream(s);
+                send("150 OK Sending file list to " + s.getInetAddress());
+                logger.info("Sending filelist " + mFakeRoot.getCurDir() + " via " + s);
 
-            // List all files in the directory
-            File[] files = mFakeRoot.listFiles();
-            if (files != null) {
-                for (int i = 0; i < files.length; i++) {
-                    tmp = getFileInfoLineForList(files[i]);
+                String tmp = getFileInfoLineForList(mFakeRoot.getFile("."));
+                dataOut.write(tmp.getBytes(mCurrentEncoding));
+                // List ".." only when not in root dir
+                if (!mFakeRoot.getCurDir().equals("/")) {
+                    tmp = getFileInfoLineForList(mFakeRoot.getFile(".."));
                     dataOut.write(tmp.getBytes(mCurrentEncoding));
                 }
+
+                // List all files in the directory, other sessions may already have done the work
+                ListingCache cache = mMyFTP.getListingCache();
+                File dir = mFakeRoot.getFile(".");
+                byte[] listing = cache.get(dir, mCurrentEncoding);
+                if (listing != null) {
+                    dataOut.write(listing);
+                } else {
+                    // Stream the entries as they are read, keep a copy for the cache while it is small enough
+                    long generation = cache.generation();
+                    ByteArrayOutputStream copy = new ByteArrayOutputStream();
+                    try (DirectoryStream<Path> ds = mFakeRoot.newDirectoryStream()) {
+                        for (Path p : ds) {
+                            if (GroupCommit.isTempName(p.getFileName().toString())) {
+                                continue; // upload in progress
+                            }
+                            byte[] line = getFileInfoLineForList(p.toFile()).getBytes(mCurrentEncoding);
+                            dataOut.write(line);
+                            if (copy != null) {
+                                copy.write(line);
+                                if (copy.size() > cache.getMaxEntryBytes()) {
+                                    copy = null;
+                                }
+                            }
+                        }
+                    } catch (NoSuchFileException e) {
+                        // directory removed, list nothing like before
+                    }
+                    if (copy != null) {
+                        cache.put(dir, mCurrentEncoding, copy.toByteArray(), generation);
+                    }
+                }
+                dataOut.close(); // finishes the zlib stream in MODE Z
+            } finally {
+                releaseListing(dataOut, s);
             }
-            s.close();
 
             send("226 Transfer complete.");
         } catch (IOException e) {
@@ -270,6 +410,85 @@ public class ConnectionHandler extends Thread {
         return true;
     }
 
+    /**
+     * Issue a nlst (names only) command. Streams the names without looking at the files, NLST of
+     * a file sends just its name.
+     */
+    private boolean nlst(String name) throws IOException {
+        File dir = null;
+        if (name != null && !name.startsWith("-")) {
+            dir = mFakeRoot.getFile(name);
+            if (dir == null) {
+                send("550 " + name + ": Permission denied");
+                return false;
+            }
+        }
+
+        try {
+            Socket s = openConnection();
+            OutputStream dataOut = null;
+            try {
+                dataOut = listingStream(s);
+                send("150 OK Sending name list to " + s.getInetAddress());
+                logger.info("Sending namelist " + (dir == null ? mFakeRoot.getCurDir() : name) + " via " + s);
+
+                try (DirectoryStream<Path> ds = dir == null ? mFakeRoot.newDirectoryStream() : Files.newDirectoryStream(dir.toPath())) {
+                    for (Path p : ds) {
+                        if (GroupCommit.isTempName(p.getFileName().toString())) {
+                            continue; // upload in progress
+                        }
+                        dataOut.write((p.getFileName() + "\r\n").getBytes(mCurrentEncoding));
+                    }
+                } catch (NoSuchFileException e) {
+                    // nothing to list
+                } catch (NotDirectoryException e) {
+                    if (dir != null) {
+                        // a file lists as its own name, as clients expanding mget patterns expect
+                        dataOut.write((name + "\r\n").getBytes(mCurrentEncoding));
+                    }
+                }
+                dataOut.close(); // finishes the zlib stream in MODE Z
+            } finally {
+                releaseListing(dataOut, s);
+            }
+
+            send("226 Transfer complete.");
+        } catch (IOException e) {
+            send("425 Unable to build data connection for nlst: " + e);
+            logger.error(e);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Free what a listing holds, also when it failed half way: the deflater of MODE Z (native
+     * memory and a pooled buffer) and the data connection
+     *
+     * @param dataOut from listingStream(), null if it wasn't created
+     */
+    private static void releaseListing(OutputStream dataOut, Socket s) {
+        if (dataOut instanceof Compression.DeflatingOutputStream) {
+            ((Compression.DeflatingOutputStream) dataOut).end(); // nothing left to do after close()
+        }
+        try {
+            s.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * @return the stream to write a listing to, deflated in MODE Z. Closing it closes the data
+     * connection.
+     */
+    private OutputStream listingStream(Socket s) throws IOException {
+        if (mModeZ) {
+            return new Compression.DeflatingOutputStream(s.getOutputStream(), mDeflateLevel, mMyFTP.getBufferPool());
+        }
+        return new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+    }
+
     /**
      * Issue a retr (download) command
      */
@@ -293,20 +512,46 @@ public class ConnectionHandler extends Thread {
             logger.info("GET " + f + " via " + s);
 
             long totalData = 0;
+            boolean zeroCopy = transferMode == TransferMode.BINARY && s.getChannel() != null && !mModeZ;
+            Compression.DeflatingOutputStream deflater = null;
+            long wireData = 0; // compressed bytes in MODE Z
+            Bandwidth.Throttle throttle = newThrottle();
             FileInputStream fin = new FileInputStream(f);
-            fin.skip(mRest);
-            mRest = 0;
-            byte[] buffer = new byte[1024 * 100];
-            int read;
-            while ((read = fin.read(buffer)) != -1) {
-                out.write(buffer, 0, read);
-                totalData += read;
+            try {
+                if (zeroCopy) {
+                    totalData = sendFile(fin.getChannel(), mRest, s.getChannel(), throttle);
+                    mRest = 0;
+                } else {
+                    WritableByteChannel channel;
+                    if (mModeZ) {
+                        deflater = new Compression.DeflatingOutputStream(out, Compression.levelFor(f, mRest, mDeflateLevel), mMyFTP.getBufferPool());
+                        channel = Channels.newChannel(deflater);
+                    } else {
+                        channel = s.getChannel() != null ? s.getChannel() : Channels.newChannel(out);
+                    }
+                    FileChannel fc = fin.getChannel();
+                    fc.position(Math.max(mRest, 0));
+                    mRest = 0;
+                    totalData = sendStream(fc, channel, deflater, throttle, transferMode == TransferMode.TEXT ? new AsciiTranscoder() : null,
+                            mMyFTP.getBufferPool());
+                }
+            } finally {
+                fin.close();
+                if (deflater != null) {
+                    wireData = deflater.getBytesWritten();
+                    deflater.end();
+                }
+                s.close();
+                if (throttle != null) {
+                    throttle.close();
+                }
             }
-            fin.close();
-            s.close();
 
-            double kBps = totalData / 1.024 / (System.currentTimeMillis() - startT);
-            send("226 Transfer complete - " + Utils.maxDec(kBps, 1) + " KB/s");
+            long millis = System.currentTimeMillis() - startT;
+            mMyFTP.getMetrics().download(totalData, millis);
+            double kBps = totalData / 1.024 / Math.max(1, millis);
+            send("226 Transfer complete - " + Utils.maxDec(kBps, 1) + " KB/s" + (zeroCopy ? " (zero-copy)" : "")
+                    + (deflater != null ? " (MODE Z, " + wireData + " bytes sent)" : ""));
         } catch (IOException e) {
             send("425 Unable to build data connection for retr: " + e);
             logger.error(e);
@@ -316,6 +561,95 @@ public class ConnectionHandler extends Thread {
         return true;
     }
 
+    /**
+     * @return the rate limit for a transfer
+     */
+    private Bandwidth.Throttle newThrottle() {
+        return mMyFTP.getBandwidth().newThrottle(mSessionBucket, mAccount == null ? null : mAccount.getLogin());
+    }
+
+    /**
+     * Send the file from position start to the data connection with FileChannel.transferTo,
+     * letting the kernel move the bytes (sendfile) without copying them through the heap.
+     * When throttled it is sent in chunks, each one paid for before it is sent.
+     *
+     * @param throttle null if not rate limited
+     * @return number of bytes sent
+     */
+    static long sendFile(FileChannel fc, long start, SocketChannel out, Bandwidth.Throttle throttle) throws IOException {
+        long pos = Math.max(start, 0);
+        long size = fc.size();
+        while (pos < size) {
+            long count = size - pos;
+            if (throttle != null) {
+                count = Math.min(count, throttle.chunkSize());
+                throttle.acquire(count);
+            }
+            long sent = fc.transferTo(pos, count, out);
+            if (sent <= 0 && fc.size() <= pos) {
+                break; // file was truncated while sending
+            }
+            pos += sent;
+        }
+        return Math.max(pos - start, 0);
+    }
+
+    /**
+     * Copy everything from in to the data connection through a pooled direct buffer, converting
+     * line endings in TYPE A. When deflating (MODE Z) the zlib stream is finished, and a throttle
+     * is charged for the compressed bytes after they have been sent.
+     *
+     * @param zlib the stream under out in MODE Z, otherwise null
+     * @param ascii null for binary
+     * @param throttle null if not rate limited
+     * @return number of bytes read from in
+     */
+    static long sendStream(ReadableByteChannel in, WritableByteChannel out, Compression.DeflatingOutputStream zlib,
+                           Bandwidth.Throttle throttle, AsciiTranscoder ascii, BufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.lease(TRANSFER_BUFFER_SIZE);
+        ByteBuffer network = ascii == null ? buffer : pool.lease(TRANSFER_BUFFER_SIZE);
+        try {
+            int maxChunk = ascii == null ? buffer.capacity() : buffer.capacity() / 2;
+            long total = 0;
+            long paid = 0;
+            while (true) {
+                buffer.clear();
+                buffer.limit(throttle == null ? maxChunk : Math.min(maxChunk, throttle.chunkSize())); // limits may change meanwhile
+                int read = in.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                buffer.flip();
+                if (ascii != null) {
+                    network.clear();
+                    ascii.toNetwork(buffer, network);
+                    network.flip();
+                }
+                if (throttle != null && zlib == null) {
+                    throttle.acquire(network.remaining());
+                }
+                while (network.hasRemaining()) {
+                    out.write(network);
+                }
+                total += read;
+                if (throttle != null && zlib != null) {
+                    throttle.acquire(zlib.getBytesWritten() - paid);
+                    paid = zlib.getBytesWritten();
+                }
+            }
+            if (zlib != null) {
+                zlib.finish();
+                zlib.flush();
+            }
+            return total;
+        } finally {
+            pool.release(buffer);
+            if (network != buffer) {
+                pool.release(network);
+            }
+        }
+    }
+
     /**
      * Issue a stor (upload) command
      */
@@ -326,10 +660,20 @@ public class ConnectionHandler extends Thread {
             return false;
         }
 
+        File temp = null; // with -atomic-uploads
+        FileOutputStream fout = null;
         try {
             Socket s = openConnection();
             long startT = System.currentTimeMillis();
-            InputStream in = s.getInputStream();
+            ReadableByteChannel in;
+            Compression.InflatingInputStream inflater = null;
+            if (mModeZ) {
+                inflater = new Compression.InflatingInputStream(s.getInputStream(), mMyFTP.getBufferPool());
+                in = Channels.newChannel(inflater);
+            } else {
+                in = s.getChannel() != null ? s.getChannel() : Channels.newChannel(s.getInputStream());
+            }
+            AsciiTranscoder ascii = transferMode == TransferMode.TEXT ? new AsciiTranscoder() : null;
             send("150 Opened " + transferMode + " mode data connection for file " + fil + " to " + s.getInetAddress());
             logger.info("PUT " + f + " via " + s);
 
@@ -339,34 +683,63 @@ public class ConnectionHandler extends Thread {
                 logger.info("WARNING!!! rest=" + mRest + ", flen=" + f.length());
             }
 
-            FileOutputStream fout = new FileOutputStream(f.getPath(), append);
+            if (MyFTP.ATOMIC_UPLOADS && !(append && f.length() > 0)) {
+                // Written next to the target, it gets the real name once complete and synced.
+                // Appends go to the file itself, copying it first would make each append cost
+                // the whole file.
+                temp = GroupCommit.tempFile(f);
+                fout = new FileOutputStream(temp);
+            } else {
+                fout = new FileOutputStream(f.getPath(), append);
+            }
             mRest = 0;
+            mMyFTP.getListingCache().invalidateParent(f);
 
             long totalData = 0;
-            if (transferMode == TransferMode.BINARY) {
-                byte[] buffer = new byte[1024 * 100];
-                int read;
-                while ((read = in.read(buffer)) != -1) {
-                    fout.write(buffer, 0, read);
-                    totalData += read;
+            long wireData = 0; // compressed bytes in MODE Z
+            // only when the file will hold exactly what is received
+            Checksums.Digest digest = Checksums.HASH_ON_UPLOAD && (!append || f.length() == 0) ? mHashAlgorithm.newDigest() : null;
+            Bandwidth.Throttle throttle = newThrottle();
+            try {
+                totalData = receiveStream(in, fout.getChannel(), inflater, throttle, ascii, digest, mMyFTP.getBufferPool());
+            } finally {
+                if (inflater != null) {
+                    wireData = inflater.getBytesRead();
+                    inflater.end();
                 }
-            } else {
-                BufferedReader lineReader = new BufferedReader(new InputStreamReader(in));
-                PrintWriter out = new PrintWriter(new OutputStreamWriter(fout));
-                String line;
-                while ((line = lineReader.readLine()) != null) {
-                    out.println(line);
-                    totalData += line.length() + 1;
+                if (throttle != null) {
+                    throttle.close();
                 }
-                out.close();
+            }
+            if (temp != null) {
+                mMyFTP.getGroupCommit().commit(fout.getChannel(), temp, f);
+            } else if (MyFTP.ATOMIC_UPLOADS) {
+                fout.getChannel().force(true); // an append, durable but not atomic
             }
             fout.close();
             s.close();
+            mMyFTP.getListingCache().invalidateParent(f);
+            if (digest != null) {
+                mMyFTP.getChecksums().put(f, mHashAlgorithm, digest.hex());
+            }
 
-            double kBps = totalData / 1.024 / (System.currentTimeMillis() - startT);
-            send("226 Transfer complete - " + Utils.maxDec(kBps, 1) + " KB/s");
+            long millis = System.currentTimeMillis() - startT;
+            mMyFTP.getMetrics().upload(totalData, millis);
+            double kBps = totalData / 1.024 / Math.max(1, millis);
+            send("226 Transfer complete - " + Utils.maxDec(kBps, 1) + " KB/s"
+                    + (inflater != null ? " (MODE Z, " + wireData + " bytes received)" : ""));
         } catch (IOException e) {
             logger.error(e);
+            if (temp != null) {
+                // a partial upload never gets the real name
+                try {
+                    if (fout != null) {
+                        fout.close();
+                    }
+                } catch (IOException e2) {
+                }
+                temp.delete();
+            }
             send("426 Transfer aborted " + e);
             return false;
         }
@@ -374,6 +747,76 @@ public class ConnectionHandler extends Thread {
         return true;
     }
 
+    /**
+     * Copy everything from the data connection to the file through a pooled direct buffer,
+     * converting line endings in TYPE A. When inflating (MODE Z), a throttle is charged for the
+     * compressed bytes.
+     *
+     * @param zlib the stream under in in MODE Z, otherwise null
+     * @param ascii null for binary
+     * @param throttle null if not rate limited
+     * @param digest gets the bytes written to the file, null if not hashing
+     * @return number of bytes written to the file
+     */
+    static long receiveStream(ReadableByteChannel in, FileChannel out, Compression.InflatingInputStream zlib,
+                              Bandwidth.Throttle throttle, AsciiTranscoder ascii, Checksums.Digest digest,
+                              BufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.lease(TRANSFER_BUFFER_SIZE);
+        ByteBuffer local = ascii == null ? buffer : pool.lease(TRANSFER_BUFFER_SIZE);
+        try {
+            int maxChunk = ascii == null ? buffer.capacity() : buffer.capacity() - 1;
+            long total = 0;
+            long paid = 0;
+            while (true) {
+                buffer.clear();
+                buffer.limit(throttle == null ? maxChunk : Math.min(maxChunk, throttle.chunkSize())); // limits may change meanwhile
+                int read = in.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                if (throttle != null) {
+                    long received = zlib == null ? read : zlib.getBytesRead() - paid;
+                    throttle.acquire(received);
+                    paid += received;
+                }
+                buffer.flip();
+                if (ascii != null) {
+                    local.clear();
+                    ascii.toLocal(buffer, local);
+                    local.flip();
+                }
+                total += local.remaining();
+                if (digest != null) {
+                    int pos = local.position();
+                    digest.update(local);
+                    local.position(pos);
+                }
+                while (local.hasRemaining()) {
+                    out.write(local);
+                }
+            }
+            if (ascii != null) {
+                local.clear();
+                ascii.finish(local);
+                local.flip();
+                total += local.remaining();
+                if (digest != null) {
+                    digest.update(local);
+                    local.flip();
+                }
+                while (local.hasRemaining()) {
+                    out.write(local);
+                }
+            }
+            return total;
+        } finally {
+            pool.release(buffer);
+            if (local != buffer) {
+                pool.release(local);
+            }
+        }
+    }
+
     /**
      * Issue a cwd (change working directory) command
      */
@@ -403,6 +846,7 @@ public class ConnectionHandler extends Thread {
             send("550 " + name + ": Unable to create directory");
             return false;
         }
+        mMyFTP.getListingCache().invalidateParent(f);
 
         send("257 \"" + name + "\" - Directory created successfully");
         return true;
@@ -442,6 +886,7 @@ public class ConnectionHandler extends Thread {
         if (!f.delete()) {
             send("550 File remove failed, you so stupid! " + f);
         } else {
+            mMyFTP.getListingCache().invalidateParent(f);
             send("250 File gone!");
         }
         return true;
@@ -469,6 +914,8 @@ public class ConnectionHandler extends Thread {
                 send("550 Directory remove failed, awfully sorry about that :-(");
             }
         } else {
+            mMyFTP.getListingCache().invalidate(f);
+            mMyFTP.getListingCache().invalidateParent(f);
             send("250 Directory gone!");
         }
         return true;
@@ -489,142 +936,285 @@ public class ConnectionHandler extends Thread {
         }
 
         long fTime = f.lastModified();
-        DateFormat df = new SimpleDateFormat("yyyyMMddHHmmss");
-        df.setTimeZone(TimeZone.getTimeZone("UTC"));
-        String tStr = df.format(new Date(fTime));
+        String tStr = mUtcTimeFormat.format(new Date(fTime));
         send("213 " + tStr);
 
         return true;
     }
 
     /**
-     * Read a line from the connected socket
-     *
-     * @return
-     * @throws java.io.IOException
+     * Set how long the control connection may be silent before the session is dropped
      */
-    private String readLine() throws IOException {
-        byte[] tmp = new byte[1024];
-        int len;
-        for (len = 0; len < tmp.length; len++) {
-            int next = sockIn.read();
-            if (next == -1) {
-                return null;
-            }
-            tmp[len] = (byte) (next & 0xff);
-            if (next == 10 || next == 13) {
-                break;
-            }
+    private void setControlTimeout(int millis) throws IOException {
+        if (mNioSession != null) {
+            mNioSession.setIdleTimeout(millis);
+        } else {
+            mSocket.setSoTimeout(millis);
         }
+    }
 
-        String ret = new String(tmp, 0, len, mCurrentEncoding).trim();
-        return ret;
+    /**
+     * RFC 3659 facts for one directory entry, all taken from a single attribute read.
+     * perm is based on whether the containing directory is writable, the server runs as one user.
+     */
+    private String getFactsForMlsx(BasicFileAttributes attrs, String type, boolean dirWritable, String name) {
+        StringBuilder sb = new StringBuilder(80);
+        sb.append("type=").append(type);
+        if (!attrs.isDirectory()) {
+            sb.append(";size=").append(attrs.size());
+        }
+        sb.append(";modify=").append(mUtcTimeFormat.format(new Date(attrs.lastModifiedTime().toMillis())));
+        if (attrs.isDirectory()) {
+            sb.append(";perm=el").append(dirWritable ? "cmpdf" : "");
+        } else {
+            sb.append(";perm=r").append(dirWritable ? "adfw" : "");
+        }
+        sb.append("; ").append(name);
+        return sb.toString();
+    }
+
+    private static String mlsxType(BasicFileAttributes attrs) {
+        if (attrs.isDirectory()) {
+            return "dir";
+        }
+        return attrs.isRegularFile() ? "file" : "OS.unix=other";
     }
 
     /**
-     * The actual thread
+     * Machine readable listing of a directory (RFC 3659) over the data connection
      */
-    @Override
-    public void run() {
+    private boolean mlsd(String name) throws IOException {
+        File dir = mFakeRoot.getFile(name == null ? "." : name);
+        if (dir == null) {
+            send("550 " + name + ": Permission denied");
+            return false;
+        }
+        if (!dir.isDirectory()) {
+            send("501 " + name + ": Not a directory");
+            return false;
+        }
+
         try {
-            mPasv = false;
-            mActive = false;
+            Socket s = openConnection();
+            OutputStream dataOut = null;
+            try {
+                dataOut = listingStream(s);
+                send("150 OK Sending machine list to " + s.getInetAddress());
+                logger.info("Sending MLSD " + dir + " via " + s);
 
-            send("220 Welcome to the TibbeFTP v" + MyFTP.VERSION);
-
-            String cmdLine;
-            while ((cmdLine = readLine()) != null) {
-                mSocket.setSoTimeout(SESSION_TIMEOUT_MILLIS);
-                logger.recvCommand(cmdLine);
-
-                StringTokenizer st = new StringTokenizer(cmdLine);
-                if (!st.hasMoreTokens()) {
-                    continue;
-                }
-                String cmd = st.nextToken().toUpperCase();
-                String arg = st.hasMoreTokens() ? st.nextToken("").trim() : null;
-
-                if (!handleCommand(cmd, arg)) {
-                    if (!loggedIn) {
-                        send("530 Not logged in");
-                    } else if (cmd.equals("PORT")) {
-                        port(arg);
-                    } else if (cmd.equals("PASV")) {
-                        pasv(MyFTP.PASV_RANGE_MIN, MyFTP.PASV_RANGE_MAX);
-                        mSocket.setSoTimeout(10000);
-                    } else if (cmd.equals("MKD") && arg != null) {
-                        mkdir(arg);
-                    } else if (cmd.equals("CWD") && arg != null) {
-                        cwd(arg);
-                    } else if (cmd.equals("CDUP") && arg != null) {
-                        cwd("..");
-                    } else if (cmd.equals("LIST") || cmd.equals("NLST")) {
-                        list();
-                    } else if (cmd.equals("SIZE") && arg != null) {
-                        size(arg);
-                    } else if (cmd.equals("DELE") && arg != null) {
-                        dele(arg);
-                    } else if (cmd.equals("RM") && arg != null) {
-                        rm(arg);
-                    } else if (cmd.equals("RMD") && arg != null) {
-                        rm(arg);
-                    } else if (cmd.equals("MDTM") && arg != null) {
-                        mdtm(arg);
-                    } else if (cmd.equals("RNFR") && arg != null) {
-                        mRnfr = arg;
-                        send("350 OK, now issue a RNTO");
-                    } else if (cmd.equals("RNTO") && mRnfr != null && arg != null) {
-                        File fs = mFakeRoot.getFile(mRnfr);
-                        mRnfr = null;
-                        File fd = mFakeRoot.getFile(arg);
-                        if (fs == null || fd == null) {
-                            send("553 Could not rename file. Probably wrong name(s)");
-                        } else {
-                            if (fs.renameTo(fd)) {
-                                send("250 File renamed successfully");
-                            } else {
-                                send("553 Unable to rename file");
-                            }
+                Path dirPath = dir.toPath();
+                BasicFileAttributes dirAttrs = Files.readAttributes(dirPath, BasicFileAttributes.class);
+                boolean writable = dir.canWrite();
+                dataOut.write((getFactsForMlsx(dirAttrs, "cdir", writable, ".") + "\r\n").getBytes(mCurrentEncoding));
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(dirPath)) {
+                    for (Path p : ds) {
+                        if (GroupCommit.isTempName(p.getFileName().toString())) {
+                            continue; // upload in progress
                         }
-                    } else if (cmd.equals("REST") && arg != null) {
+                        BasicFileAttributes attrs;
                         try {
-                            mRest = Long.parseLong(arg);
-                            send("350 Restarting at position " + mRest + ", now issue STOR or RETR!");
-                        } catch (Exception e) {
-                            send("554 Invalid REST parameter");
+                            attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                        } catch (IOException e) {
+                            continue; // removed while listing, or a dangling link
                         }
-                    } else if (cmd.equals("RETR") && arg != null) {
-                        retr(arg);
-                    } else if (cmd.equals("APPE") && arg != null) {
-                        mRest = -1;
-                        stor(arg);
-                    } else if (cmd.equals("STOR") && arg != null) {
-                        stor(arg);
-                    } else if (cmd.equals("TYPE") && arg != null && arg.equals("I")) {
-                        transferMode = TransferMode.BINARY;
-                        send("200 Type set to I");
-                    } else if (cmd.equals("TYPE") && arg != null && arg.equals("A")) {
-                        transferMode = TransferMode.TEXT;
-                        send("200 Type set to A");
-                    } else if (cmd.equals("PWD") || cmd.equals("XPWD")) {
-                        send("257 \"" + mFakeRoot.getCurDir() + "\" is current directory.");
-                    } else if (cmd.equals("RETR")) {
-                        send("150");
-                    } else {
-                        send("500 " + cmd + " not understood");
+                        String line = getFactsForMlsx(attrs, mlsxType(attrs), writable, p.getFileName().toString());
+                        dataOut.write((line + "\r\n").getBytes(mCurrentEncoding));
                     }
                 }
+                dataOut.close(); // finishes the zlib stream in MODE Z
+            } finally {
+                releaseListing(dataOut, s);
+            }
+
+            send("226 Transfer complete.");
+        } catch (IOException e) {
+            send("425 Unable to build data connection for mlsd: " + e);
+            logger.error(e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Machine readable facts about one file or directory (RFC 3659) on the control connection
+     */
+    private boolean mlst(String name) throws IOException {
+        File f = mFakeRoot.getFile(name == null ? "." : name);
+        if (f == null) {
+            send("550 " + name + ": Permission denied");
+            return false;
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            send("550 " + name + ": No such file or directory");
+            return false;
+        }
+        String path = name == null ? mFakeRoot.getCurDir() : name;
+        File parent = f.getAbsoluteFile().getParentFile();
+        boolean writable = parent == null || parent.canWrite();
+        send("250- Listing " + path);
+        send(" " + getFactsForMlsx(attrs, mlsxType(attrs), writable, path));
+        send("250 End");
+        return true;
+    }
+
+    /**
+     * The session loop, run on its own (platform or virtual) thread
+     */
+    @Override
+    public void run() {
+        try {
+            if (!awaitAdmission()) {
+                return;
             }
-        } catch (SocketException e) {
-            if (!clientQuit) {
-                logger.error(e);
+            greet();
+            flushReplies();
+
+            ControlLineReader reader = new ControlLineReader(sockIn);
+            int len;
+            while ((len = reader.readLine()) != -1) {
+                processLine(reader.getBuffer(), reader.getLineStart(), len);
+                // Commands sent back to back are executed in order, their replies leave together
+                if (!reader.hasBufferedLine()) {
+                    flushReplies();
+                }
             }
         } catch (Exception e) {
-            logger.error(e);
+            handleError(e);
         } finally {
-            if (mServerSocketData != null) {
+            close();
+            mMyFTP.getBufferPool().releaseThreadCache(); // the thread ends with the session
+        }
+    }
+
+    /**
+     * @param admission what Admission.tryAdmit() said about this connection
+     */
+    void setAdmission(int admission) {
+        mQueued = admission == Admission.QUEUED;
+        mHoldsSlot = admission == Admission.ADMITTED;
+    }
+
+    /**
+     * Wait for a session slot if the connection was queued, first thing on a new connection
+     *
+     * @return false if the connection was rejected (421 has been sent)
+     */
+    boolean awaitAdmission() throws IOException {
+        if (!mQueued) {
+            return true;
+        }
+        mQueued = false;
+        if (mMyFTP.getAdmission().awaitSlot()) {
+            mHoldsSlot = true;
+            return true;
+        }
+        send(Admission.rejectReply(Admission.REJECTED_FULL));
+        flushReplies();
+        return false;
+    }
+
+    /**
+     * Send the welcome banner, first thing on a new connection
+     */
+    void greet() throws IOException {
+        mPasv = false;
+        mActive = false;
+
+        send("220 Welcome to the TibbeFTP v" + MyFTP.VERSION);
+    }
+
+    /**
+     * Execute one command line received on the control connection. The verb is recognized
+     * in place, only the argument (and the log line) become strings.
+     */
+    void processLine(byte[] buf, int off, int len) throws IOException {
+        // trim, like String.trim()
+        while (len > 0 && (buf[off] & 0xff) <= ' ') {
+            off++;
+            len--;
+        }
+        while (len > 0 && (buf[off + len - 1] & 0xff) <= ' ') {
+            len--;
+        }
+        setControlTimeout(SESSION_TIMEOUT_MILLIS);
+        if (logger.isEnabled()) {
+            logger.recvCommand(new String(buf, off, len, mCurrentEncoding));
+        }
+        if (len == 0) {
+            return;
+        }
+
+        int verbLen = 0;
+        while (verbLen < len && !isDelimiter(buf[off + verbLen])) {
+            verbLen++;
+        }
+        int argStart = verbLen;
+        while (argStart < len && (buf[off + argStart] & 0xff) <= ' ') {
+            argStart++;
+        }
+        String arg = argStart < len ? new String(buf, off + argStart, len - argStart, mCurrentEncoding) : null;
+
+        Command command = Command.lookup(buf, off, verbLen);
+        if (command == null || (command.requiresLogin && !loggedIn)) {
+            mMyFTP.getMetrics().commandRejected();
+            if (!loggedIn) {
+                send("530 Not logged in");
+            } else {
+                send("500 " + new String(buf, off, verbLen, mCurrentEncoding).toUpperCase() + " not understood");
+            }
+        } else if (command.requiresArg && arg == null) {
+            send("500 " + command + " not understood");
+        } else {
+            long start = System.nanoTime();
+            try {
+                dispatch(command, arg);
+            } finally {
+                mMyFTP.getMetrics().commandExecuted(command, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Same delimiters as StringTokenizer
+     */
+    private static boolean isDelimiter(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    /**
+     * Log an exception that ended the session (a closed socket after QUIT is expected)
+     */
+    void handleError(Exception e) {
+        if (e instanceof SocketException && clientQuit) {
+            return;
+        }
+        logger.error(e);
+    }
+
+    /**
+     * @return true once the control connection has been closed (QUIT, error or timeout)
+     */
+    boolean isControlClosed() {
+        return mSocket.isClosed();
+    }
+
+    /**
+     * Release everything this session holds. Safe to call more than once.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            if (mServerSocketData != null || mPasvTicket != null) {
                 try {
-                    mServerSocketData.close();
+                    closeServerSocketData();
                     if (mSocket != null && mSocket.isConnected() && !mSocket.isClosed()) {
                         send("421 Timeout.");
                     }
@@ -632,6 +1222,13 @@ public class ConnectionHandler extends Thread {
                     logger.error(e);
                 }
             }
+            try {
+                if (!mSocket.isClosed()) {
+                    flushReplies();
+                }
+            } catch (IOException e) {
+                // the client is gone
+            }
             // Close connection to
             if (mSocket != null) {
                 try {
@@ -640,53 +1237,81 @@ public class ConnectionHandler extends Thread {
                 }
             }
             logger.info("Connection closed to " + (loggedIn ? username + "@ " : "") + mSocket.getInetAddress());
+        } finally {
+            // not flushed if the client is already gone
+            ByteBuffer replies = mReplies;
+            mReplies = null;
+            mMyFTP.getBufferPool().release(replies);
+            Admission admission = mMyFTP.getAdmission();
+            admission.release(mSocket.getInetAddress(), mHoldsSlot);
+            if (mCountedLogin != null) {
+                admission.logout(mCountedLogin);
+            }
+            mMyFTP.sessionClosed(this);
         }
     }
 
     /**
-     * @param cmd
-     * @param arg
-     * @return true if command was handled, false otherwise
-     * @throws IOException
+     * Run a recognized command, login and argument requirements have been checked by processLine
      */
-    private boolean handleCommand(String cmd, String arg) throws IOException {
-        switch (cmd) {
-            case "QUIT":
+    private void dispatch(Command command, String arg) throws IOException {
+        switch (command) {
+            case QUIT:
                 send("221 Goodbye.");
+                flushReplies();
                 clientQuit = true;
                 mSocket.close();
                 break;
-            case "FEAT":
+            case FEAT:
                 send("211-Features:");
                 send(" SIZE");
                 send(" MDTM");
                 send(" PASV");
                 send(" REST");
                 send(" UTF8");
+                send(" MLST type*;size*;modify*;perm*;");
+                send(" MODE Z");
+                send(" " + hashFeature());
+                send(" RANG STREAM");
                 send("211 End");
                 break;
-            case "SYST":
+            case SYST:
                 send("215 UNIX Type: L8");
                 break;
-            case "INFOSYS":
+            case INFOSYS:
                 send(mMyFTP.getSysInfo());
                 break;
-            case "OPTS":
+            case OPTS:
                 if (arg != null && arg.equalsIgnoreCase("UTF8 ON")) {
                     mCurrentEncoding = "UTF8";
                     send("200 yeah sure");
+                } else if (arg != null && arg.toUpperCase().startsWith("MODE Z")) {
+                    optsModeZ(arg.substring(6).trim());
+                } else if (arg != null && arg.toUpperCase().startsWith("HASH")) {
+                    optsHash(arg.substring(4).trim());
                 }
                 break;
-            case "NOOP":
+            case MODE:
+                if (arg.equalsIgnoreCase("Z")) {
+                    mModeZ = true;
+                    send("200 MODE Z ok, deflate level " + mDeflateLevel);
+                } else if (arg.equalsIgnoreCase("S")) {
+                    mModeZ = false;
+                    send("200 MODE S ok");
+                } else {
+                    send("504 MODE " + arg + " not implemented");
+                }
+                break;
+            case NOOP:
                 send("200 noop ok, although i'd rather see you do something useful :-)");
                 break;
-            case "USER":
+            case USER:
                 send("331 Ok, password please");
                 if (arg != null) {
                     username = arg;
                 }
                 break;
-            case "PASS":
+            case PASS:
                 Account a;
                 if (arg != null) {
                     a = Account.getAccount(username, arg);
@@ -694,11 +1319,22 @@ public class ConnectionHandler extends Thread {
                     a = null;
                 }
 
+                mMyFTP.getMetrics().login(a != null);
                 if (a == null) {
                     logger.info("LoginFail for " + username);
                     send("530 Login incorrect.");
                     Logger.logToConsole("LoginFail for " + username + " from " + mSocket.getInetAddress());
+                } else if (!a.getLogin().equals(mCountedLogin) && !mMyFTP.getAdmission().login(a.getLogin())) {
+                    logger.info("Too many sessions for " + a.getLogin());
+                    send("421 Too many sessions for " + a.getLogin() + ", try again later.");
+                    flushReplies();
+                    clientQuit = true;
+                    mSocket.close();
                 } else {
+                    if (mCountedLogin != null && !mCountedLogin.equals(a.getLogin())) {
+                        mMyFTP.getAdmission().logout(mCountedLogin);
+                    }
+                    mCountedLogin = a.getLogin();
                     Logger.logToConsole("LoginOK for " + username + " from " + mSocket.getInetAddress());
                     logger.info("Login " + username);
                     loggedIn = true;
@@ -710,9 +1346,321 @@ public class ConnectionHandler extends Thread {
                     mAccount = a;
                 }
                 break;
-            default:
-                return false;
+            case PORT:
+                port(arg);
+                break;
+            case PASV:
+                pasv();
+                setControlTimeout(10000);
+                break;
+            case MKD:
+                mkdir(arg);
+                break;
+            case CWD:
+                cwd(arg);
+                break;
+            case CDUP:
+                cwd("..");
+                break;
+            case LIST:
+                list();
+                break;
+            case NLST:
+                nlst(arg);
+                break;
+            case SIZE:
+                size(arg);
+                break;
+            case DELE:
+                dele(arg);
+                break;
+            case RM:
+            case RMD:
+                rm(arg);
+                break;
+            case MDTM:
+                mdtm(arg);
+                break;
+            case RNFR:
+                mRnfr = arg;
+                send("350 OK, now issue a RNTO");
+                break;
+            case RNTO:
+                rnto(arg);
+                break;
+            case REST:
+                try {
+                    mRest = Long.parseLong(arg);
+                    send("350 Restarting at position " + mRest + ", now issue STOR or RETR!");
+                } catch (Exception e) {
+                    send("554 Invalid REST parameter");
+                }
+                break;
+            case RETR:
+                if (arg != null) {
+                    retr(arg);
+                } else {
+                    send("150");
+                }
+                break;
+            case APPE:
+                mRest = -1;
+                stor(arg);
+                break;
+            case STOR:
+                stor(arg);
+                break;
+            case TYPE:
+                if (arg.equals("I")) {
+                    transferMode = TransferMode.BINARY;
+                    send("200 Type set to I");
+                } else if (arg.equals("A")) {
+                    transferMode = TransferMode.TEXT;
+                    send("200 Type set to A");
+                } else {
+                    send("500 TYPE not understood");
+                }
+                break;
+            case PWD:
+            case XPWD:
+                send("257 \"" + mFakeRoot.getCurDir() + "\" is current directory.");
+                break;
+            case MLSD:
+                mlsd(arg);
+                break;
+            case MLST:
+                mlst(arg);
+                break;
+            case HASH:
+                hash(arg);
+                break;
+            case RANG:
+                rang(arg);
+                break;
+            case XCRC:
+                xhash(Checksums.Algorithm.CRC32, arg);
+                break;
+            case XMD5:
+                xhash(Checksums.Algorithm.MD5, arg);
+                break;
+            case XSHA1:
+                xhash(Checksums.Algorithm.SHA_1, arg);
+                break;
+            case XSHA256:
+                xhash(Checksums.Algorithm.SHA_256, arg);
+                break;
+        }
+    }
+
+    /**
+     * OPTS MODE Z LEVEL n, the deflate level for this session
+     */
+    private void optsModeZ(String opts) throws IOException {
+        StringTokenizer st = new StringTokenizer(opts);
+        if (st.countTokens() == 2 && st.nextToken().equalsIgnoreCase("LEVEL")) {
+            try {
+                int level = Integer.parseInt(st.nextToken());
+                if (level >= 0 && level <= 9) {
+                    mDeflateLevel = level;
+                    send("200 MODE Z LEVEL set to " + level);
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        send("501 OPTS MODE Z: only LEVEL 0-9 is supported");
+    }
+
+    /**
+     * @return the HASH line for FEAT, the selected algorithm marked with *
+     */
+    private String hashFeature() {
+        StringBuilder ret = new StringBuilder("HASH ");
+        for (Checksums.Algorithm a : Checksums.Algorithm.values()) {
+            if (a.ordinal() > 0) {
+                ret.append(';');
+            }
+            ret.append(a.mName).append(a == mHashAlgorithm ? "*" : "");
+        }
+        return ret.toString();
+    }
+
+    /**
+     * OPTS HASH [algorithm], show or select the algorithm for HASH
+     */
+    private void optsHash(String name) throws IOException {
+        if (!name.isEmpty()) {
+            Checksums.Algorithm a = Checksums.Algorithm.lookup(name);
+            if (a == null) {
+                send("501 Unknown algorithm, current selection not changed");
+                return;
+            }
+            mHashAlgorithm = a;
+        }
+        send("200 " + mHashAlgorithm.mName);
+    }
+
+    /**
+     * RANG start end, the bytes (both included) the next HASH covers. RANG 1 0 resets it.
+     */
+    private void rang(String arg) throws IOException {
+        StringTokenizer st = new StringTokenizer(arg);
+        if (st.countTokens() == 2) {
+            try {
+                long start = Long.parseLong(st.nextToken());
+                long end = Long.parseLong(st.nextToken());
+                if (start == 1 && end == 0) {
+                    mRangStart = 0;
+                    mRangEnd = -1;
+                    send("350 Restarting at 0. End of file");
+                    return;
+                }
+                if (start >= 0 && end >= start) {
+                    mRangStart = start;
+                    mRangEnd = end;
+                    send("350 Restarting at " + start + ". Ending byte at " + end);
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        send("501 RANG needs a start and an end byte");
+    }
+
+    /**
+     * HASH file, the checksum of the file (or the RANG range) with the algorithm from OPTS HASH
+     */
+    private boolean hash(String name) throws IOException {
+        long start = mRangStart;
+        long end = mRangEnd;
+        mRangStart = 0;
+        mRangEnd = -1;
+        File f = checksumFile(name);
+        if (f == null) {
+            return false;
+        }
+        long length = f.length();
+        String hash = checksum(f, mHashAlgorithm, start, end == -1 ? -1 : end + 1);
+        if (hash == null) {
+            return false;
+        }
+        long last = Math.max(start, (end == -1 ? length : Math.min(end + 1, length)) - 1);
+        send("213 " + mHashAlgorithm.mName + " " + start + "-" + last + " " + hash + " " + name);
+        return true;
+    }
+
+    /**
+     * XCRC/XMD5/XSHA1/XSHA256 file [start [end]], the file name may be quoted and end is the byte
+     * after the last one
+     */
+    private boolean xhash(Checksums.Algorithm algorithm, String arg) throws IOException {
+        String name = arg.trim();
+        String range = "";
+        if (name.startsWith("\"")) {
+            int quote = name.indexOf('"', 1);
+            if (quote > 0) {
+                range = name.substring(quote + 1).trim();
+                name = name.substring(1, quote);
+            }
+        } else {
+            // Up to two numbers at the end are the range, unless they are part of an existing name
+            File f = mFakeRoot.getFile(name);
+            if (f == null || !f.isFile()) {
+                int split = name.length();
+                for (int i = 0; i < 2; i++) {
+                    int space = name.lastIndexOf(' ', split - 1);
+                    if (space < 0 || !name.substring(space + 1, split).matches("[0-9]+")) {
+                        break;
+                    }
+                    split = space;
+                }
+                range = name.substring(split).trim();
+                name = name.substring(0, split);
+            }
+        }
+        long start = 0;
+        long end = -1;
+        StringTokenizer st = new StringTokenizer(range);
+        try {
+            if (st.hasMoreTokens()) {
+                start = Long.parseLong(st.nextToken());
+            }
+            if (st.hasMoreTokens()) {
+                end = Long.parseLong(st.nextToken());
+            }
+        } catch (NumberFormatException e) {
+            send("501 Invalid range " + range);
+            return false;
+        }
+        File f = checksumFile(name);
+        if (f == null) {
+            return false;
+        }
+        String hash = checksum(f, algorithm, start, end);
+        if (hash == null) {
+            return false;
+        }
+        send("250 " + hash);
+        return true;
+    }
+
+    /**
+     * @return the file to checksum, null if it isn't one (and the error is sent)
+     */
+    private File checksumFile(String name) throws IOException {
+        File f = mFakeRoot.getFile(name);
+        if (f == null) {
+            send("550 " + name + ": Permission denied");
+            return null;
+        }
+        if (!f.isFile()) {
+            send("550 " + name + ": Not a file");
+            return null;
+        }
+        return f;
+    }
+
+    /**
+     * @return the checksum in hex, null if the file couldn't be read (and the error is sent)
+     */
+    private String checksum(File f, Checksums.Algorithm algorithm, long start, long end) throws IOException {
+        long startT = System.currentTimeMillis();
+        try {
+            String hash = mMyFTP.getChecksums().hash(f, algorithm, start, end);
+            logger.info(algorithm.mName + " " + f + " " + start + "-" + end + " in " + (System.currentTimeMillis() - startT) + " ms");
+            return hash;
+        } catch (IOException e) {
+            logger.error(e);
+            send("451 Checksum failed " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Rename the file given by the preceding RNFR
+     */
+    private boolean rnto(String arg) throws IOException {
+        if (mRnfr == null) {
+            send("500 RNTO not understood");
+            return false;
+        }
+        File fs = mFakeRoot.getFile(mRnfr);
+        mRnfr = null;
+        File fd = mFakeRoot.getFile(arg);
+        if (fs == null || fd == null) {
+            send("553 Could not rename file. Probably wrong name(s)");
+            return false;
+        }
+        if (!fs.renameTo(fd)) {
+            send("553 Unable to rename file");
+            return false;
         }
+        mMyFTP.getListingCache().invalidate(fs);
+        mMyFTP.getListingCache().invalidateParent(fs);
+        mMyFTP.getListingCache().invalidateParent(fd);
+        send("250 File renamed successfully");
         return true;
     }
 }
@@ -0,0 +1,89 @@
+package tibbeftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads command lines from the control connection through one reusable buffer, instead of one
+ * read() call per byte. A line ends at CR or LF and is at most MAX_LINE bytes, like before.
+ * Commands a client pipelines are read ahead and kept in the buffer until their turn.
+ *
+ * @author jesper
+ */
+public class ControlLineReader {
+    static final int MAX_LINE = 1024;
+
+    private final InputStream mIn;
+    private final byte[] mBuf = new byte[4096];
+    private int mPos = 0;   // start of unconsumed data
+    private int mLimit = 0; // end of data read from the socket
+    private int mLineStart = 0;
+
+    public ControlLineReader(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Read the next line. Its bytes stay valid in getBuffer() until the next call.
+     *
+     * @return the length of the line, or -1 at end of stream
+     */
+    public int readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            int end = mPos + scanned;
+            while (end < mLimit && scanned < MAX_LINE) {
+                byte b = mBuf[end];
+                if (b == 10 || b == 13) {
+                    return consume(scanned, 1);
+                }
+                end++;
+                scanned++;
+            }
+            if (scanned == MAX_LINE) {
+                return consume(scanned, 0);
+            }
+            if (mPos > 0 && mLimit == mBuf.length) {
+                // Move the partial line to the start to make room
+                System.arraycopy(mBuf, mPos, mBuf, 0, mLimit - mPos);
+                mLimit -= mPos;
+                mPos = 0;
+            }
+            int read = mIn.read(mBuf, mLimit, mBuf.length - mLimit);
+            if (read == -1) {
+                return -1;
+            }
+            mLimit += read;
+        }
+    }
+
+    private int consume(int length, int terminator) {
+        mLineStart = mPos;
+        mPos += length + terminator;
+        if (mPos == mLimit) {
+            mPos = 0;
+            mLimit = 0;
+        }
+        return length;
+    }
+
+    public byte[] getBuffer() {
+        return mBuf;
+    }
+
+    public int getLineStart() {
+        return mLineStart;
+    }
+
+    /**
+     * @return true if a complete line has already been received and can be read without blocking
+     */
+    public boolean hasBufferedLine() {
+        for (int i = mPos; i < mLimit; i++) {
+            if (mBuf[i] == 10 || mBuf[i] == 13 || i - mPos >= MAX_LINE) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -2,6 +2,9 @@ package tibbeftp;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
  * Manages a fake root!
@@ -10,38 +13,61 @@ import java.io.IOException;
  */
 public class FakeRoot {
     final File mRootDir;
+    private final String mCanonicalRoot;
     private String mCurDir; // always starts with /
 
     public FakeRoot(File rootDir) {
         mRootDir = rootDir;
         mCurDir = "/";
+        String canonicalRoot;
+        try {
+            canonicalRoot = rootDir.getCanonicalPath();
+        } catch (IOException e) {
+            e.printStackTrace();
+            canonicalRoot = null; // nothing will be allowed
+        }
+        mCanonicalRoot = canonicalRoot;
     }
 
-    public File[] listFiles() {
-        return getRealDir().listFiles();
+    /**
+     * @return true if the canonical path is the root or inside it
+     */
+    private boolean isInsideRoot(String canonicalPath) {
+        if (mCanonicalRoot == null || !canonicalPath.startsWith(mCanonicalRoot)) {
+            return false;
+        }
+        // /home/bob must not give access to /home/bobby
+        return canonicalPath.length() == mCanonicalRoot.length()
+                || mCanonicalRoot.endsWith(File.separator)
+                || canonicalPath.charAt(mCanonicalRoot.length()) == File.separatorChar;
     }
 
     /**
-     * Returns the relative file/dir relFile from the fCurDir
+     * @return the entries of the current directory, read as they are iterated
+     */
+    public DirectoryStream<Path> newDirectoryStream() throws IOException {
+        return Files.newDirectoryStream(getRealDir().toPath());
+    }
+
+    /**
+     * Returns the relative file/dir relFile from the fCurDir. Checked against the root on every
+     * call, a directory on the way may have been replaced by a symlink since the last one.
      */
     public File getFile(String relFile) {
-        File ret = null;
+        File ret;
         if (relFile.startsWith("/"))
             ret = new File(mRootDir, relFile.substring(1));
         else
             ret = new File(getRealDir(), relFile);
         boolean allowed = false;
         try {
-            allowed = ret.getCanonicalPath().startsWith(mRootDir.getCanonicalPath());
+            allowed = isInsideRoot(ret.getCanonicalPath());
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         }
 
-        if (!allowed) {
-            ret = null;
-        }
-
-        return ret;
+        return allowed ? ret : null;
     }
 
     /**
@@ -59,10 +85,11 @@ public class FakeRoot {
         File tmp = dir.equals("/") ? mRootDir : new File(mRootDir, dir.substring(1));
 
         try {
-            boolean allowed = tmp.getCanonicalPath().startsWith(mRootDir.getCanonicalPath());
+            String canonicalPath = tmp.getCanonicalPath();
+            boolean allowed = isInsideRoot(canonicalPath);
             boolean isDirectory = tmp.isDirectory();
             if (allowed && isDirectory) {
-                mCurDir = tmp.getCanonicalPath().substring(mRootDir.getCanonicalPath().length());
+                mCurDir = canonicalPath.substring(mCanonicalRoot.length());
                 mCurDir = mCurDir.replace(File.separatorChar, '/');
                 if (!mCurDir.startsWith("/"))
                     mCurDir = "/" + mCurDir;
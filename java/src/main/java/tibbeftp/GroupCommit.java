@@ -0,0 +1,291 @@
+package tibbeftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes finished uploads (-atomic-uploads) durable and visible. An upload is written to a hidden
+ * temp file in the target directory, then handed to commit(), which fsyncs it on the calling
+ * session's thread (so uploads sync their data in parallel) and queues the rename. One thread
+ * renames all uploads finishing at about the same time to their real names and fsyncs each of
+ * their directories once, so a burst of small uploads shares the directory syncs instead of
+ * paying for them one by one. A crash leaves either the old file or the complete new one, never
+ * a partial file under the real name. The temp files it leaves are removed by sweep() at the next
+ * start.
+ *
+ * @author jesper
+ */
+public class GroupCommit {
+    /**
+     * Temp files start with this, listings leave them out
+     */
+    static final String TEMP_PREFIX = ".tibbeftp-upload-";
+
+    /**
+     * Temp names are the prefix, this run and a counter, 33 characters whatever the target's name
+     */
+    private static final String RUN_ID = String.format("%08x", new Random().nextInt());
+    private static final AtomicInteger sTempCounter = new AtomicInteger();
+    /**
+     * Windows can't open a directory to sync it, there the rename is as durable as the file
+     * system makes it
+     */
+    private static final boolean SYNC_DIRECTORIES = !System.getProperty("os.name", "").startsWith("Windows");
+
+    /**
+     * One finished and synced upload waiting for its rename
+     */
+    private static class Request {
+        final File mTemp;
+        final File mTarget;
+        IOException mError = null;
+        boolean mDone = false;
+
+        Request(File temp, File target) {
+            mTemp = temp;
+            mTarget = target;
+        }
+    }
+
+    // A lock instead of synchronized, so sessions on virtual threads don't pin their carrier while they wait
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mQueued = mLock.newCondition();
+    private final Condition mCommitted = mLock.newCondition();
+    private final List<Request> mQueue = new ArrayList<>();
+    private Thread mThread = null;
+    private final AtomicLong mCommits = new AtomicLong();
+    private final AtomicLong mBatches = new AtomicLong();
+    private final AtomicLong mDirSyncs = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mSwept = new AtomicLong();
+
+    /**
+     * @return a new hidden temp file next to target
+     */
+    static File tempFile(File target) {
+        return new File(target.getParentFile(), TEMP_PREFIX + RUN_ID + String.format("%08x", sTempCounter.incrementAndGet()));
+    }
+
+    /**
+     * @return true for the name of an upload in progress (only with -atomic-uploads, otherwise
+     * leftovers are ordinary files the user can see and delete)
+     */
+    static boolean isTempName(String name) {
+        return MyFTP.ATOMIC_UPLOADS && name.startsWith(TEMP_PREFIX);
+    }
+
+    /**
+     * Delete the temp files that earlier runs left when they crashed during an upload, in the
+     * background. Temp files of this run are recognized by their name and left alone.
+     *
+     * @param dirs the home directories
+     */
+    public void sweep(final Collection<File> dirs) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (File dir : dirs) {
+                    sweep(dir.toPath());
+                }
+                if (mSwept.get() > 0) {
+                    Logger.logToConsole("Deleted " + mSwept + " temp files of interrupted uploads");
+                }
+            }
+        }, "GroupCommitSweep");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void sweep(Path dir) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    String name = file.getFileName().toString();
+                    if (attrs.isRegularFile() && name.startsWith(TEMP_PREFIX) && !name.startsWith(TEMP_PREFIX + RUN_ID)) {
+                        if (Files.deleteIfExists(file)) {
+                            mSwept.incrementAndGet();
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE; // unreadable, try the rest
+                }
+            });
+        } catch (IOException e) {
+            Logger.logToConsole("Failed to sweep " + dir + " for temp files: " + e);
+        }
+    }
+
+    /**
+     * fsync temp, then rename it to target and fsync the directory together with the other
+     * uploads committing now. Returns when the upload is durable.
+     *
+     * @param channel open on temp, all data written
+     */
+    public void commit(FileChannel channel, File temp, File target) throws IOException {
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            mFailed.incrementAndGet();
+            throw e;
+        }
+        Request request = new Request(temp, target);
+        mLock.lock();
+        try {
+            if (mThread == null) {
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        commitLoop();
+                    }
+                }, "GroupCommit");
+                mThread.setDaemon(true);
+                mThread.start();
+            }
+            mQueue.add(request);
+            mQueued.signal();
+            while (!request.mDone) {
+                try {
+                    mCommitted.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while committing " + target);
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (request.mError != null) {
+            throw request.mError;
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            List<Request> batch;
+            mLock.lock();
+            try {
+                while (mQueue.isEmpty()) {
+                    try {
+                        mQueued.await();
+                    } catch (InterruptedException e) {
+                        failPending();
+                        return;
+                    }
+                }
+                // everything that queued up while the previous batch was syncing
+                batch = new ArrayList<>(mQueue);
+                mQueue.clear();
+            } finally {
+                mLock.unlock();
+            }
+            commitBatch(batch);
+            mLock.lock();
+            try {
+                for (Request request : batch) {
+                    request.mDone = true;
+                }
+                mCommitted.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Called on the commit thread when it is interrupted, so no session waits for it forever.
+     * The next commit() starts a new thread. The lock is held.
+     */
+    private void failPending() {
+        for (Request request : mQueue) {
+            request.mError = new IOException("Commit of " + request.mTarget + " interrupted");
+            request.mDone = true;
+            mFailed.incrementAndGet();
+        }
+        mQueue.clear();
+        mThread = null;
+        mCommitted.signalAll();
+    }
+
+    private void commitBatch(List<Request> batch) {
+        Map<File, List<Request>> dirs = new LinkedHashMap<>();
+        for (Request request : batch) {
+            try {
+                try {
+                    Files.move(request.mTemp.toPath(), request.mTarget.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(request.mTemp.toPath(), request.mTarget.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                File dir = request.mTarget.getParentFile();
+                List<Request> renamed = dirs.get(dir);
+                if (renamed == null) {
+                    renamed = new ArrayList<>();
+                    dirs.put(dir, renamed);
+                }
+                renamed.add(request);
+            } catch (IOException e) {
+                request.mError = e;
+                mFailed.incrementAndGet();
+            }
+        }
+        for (Map.Entry<File, List<Request>> dir : dirs.entrySet()) {
+            IOException error = syncDirectory(dir.getKey());
+            for (Request request : dir.getValue()) {
+                if (error == null) {
+                    mCommits.incrementAndGet();
+                } else {
+                    request.mError = error;
+                    mFailed.incrementAndGet();
+                }
+            }
+        }
+        mBatches.incrementAndGet();
+    }
+
+    /**
+     * Make the renames in dir durable
+     *
+     * @return null if done (or not possible on this OS), otherwise the error
+     */
+    private IOException syncDirectory(File dir) {
+        if (!SYNC_DIRECTORIES) {
+            return null;
+        }
+        try (FileChannel fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            fc.force(true);
+            mDirSyncs.incrementAndGet();
+            return null;
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
+    public String oneLineInfo() {
+        long batches = mBatches.get();
+        return mCommits + " commits in " + batches + " batches"
+                + (batches == 0 ? "" : " (" + Utils.maxDec((double) mCommits.get() / batches, 1) + " per batch)")
+                + ", directory syncs: " + mDirSyncs + ", failed: " + mFailed + ", swept: " + mSwept;
+    }
+}
@@ -0,0 +1,226 @@
+package tibbeftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encoded LIST output shared by all sessions, keyed by canonical directory. Entries are dropped
+ * when a session changes the directory, when a WatchService reports a change made outside the
+ * server, after MAX_AGE_MILLIS, or least recently used first when the cache is full.
+ *
+ * @author jesper
+ */
+public class ListingCache {
+    private static final long MAX_AGE_MILLIS = 60000;
+
+    private final long mMaxBytes;
+    private final long mMaxEntryBytes;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<WatchKey, String> mWatchedDirs = new HashMap<>();
+    private final AtomicLong mGeneration = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private long mBytes = 0;
+    private WatchService mWatchService;
+
+    /**
+     * Encoded listings of one directory, one per control connection encoding
+     */
+    private static class Entry {
+        final Map<String, byte[]> mListings = new HashMap<>(2);
+        final long mCreated = System.currentTimeMillis();
+        WatchKey mWatchKey;
+        long mBytes = 0;
+    }
+
+    /**
+     * @param maxBytes total size of all cached listings, 0 disables the cache
+     */
+    public ListingCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+        mMaxEntryBytes = maxBytes / 8;
+        if (maxBytes > 0) {
+            startWatcher();
+        }
+    }
+
+    /**
+     * @return the largest listing that put() will keep
+     */
+    public long getMaxEntryBytes() {
+        return mMaxEntryBytes;
+    }
+
+    /**
+     * @return a value to pass to put(), so that a listing built while the directory changed is not cached
+     */
+    public long generation() {
+        return mGeneration.get();
+    }
+
+    /**
+     * @return the cached listing for dir, or null
+     */
+    public byte[] get(File dir, String encoding) {
+        if (mMaxBytes <= 0) {
+            return null;
+        }
+        String key = key(dir);
+        synchronized (this) {
+            Entry e = key == null ? null : mEntries.get(key);
+            if (e != null && System.currentTimeMillis() - e.mCreated > MAX_AGE_MILLIS) {
+                remove(key);
+                e = null;
+            }
+            byte[] ret = e == null ? null : e.mListings.get(encoding);
+            if (ret == null) {
+                mMisses.incrementAndGet();
+            } else {
+                mHits.incrementAndGet();
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Cache a listing, unless something was invalidated since generation was read or it is too big
+     */
+    public void put(File dir, String encoding, byte[] listing, long generation) {
+        if (mMaxBytes <= 0 || listing.length > mMaxEntryBytes) {
+            return;
+        }
+        String key = key(dir);
+        if (key == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mGeneration.get() != generation) {
+                return;
+            }
+            Entry e = mEntries.get(key);
+            if (e == null) {
+                e = new Entry();
+                e.mWatchKey = watch(key);
+                mEntries.put(key, e);
+            }
+            byte[] old = e.mListings.put(encoding, listing);
+            long delta = listing.length - (old == null ? 0 : old.length);
+            e.mBytes += delta;
+            mBytes += delta;
+
+            Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+            while (mBytes > mMaxBytes && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                it.remove();
+                dropped(eldest.getValue());
+            }
+        }
+    }
+
+    /**
+     * Forget the listing of dir (call when something in dir was created, removed or changed)
+     */
+    public void invalidate(File dir) {
+        if (mMaxBytes <= 0 || dir == null) {
+            return;
+        }
+        mGeneration.incrementAndGet();
+        String key = key(dir);
+        if (key != null) {
+            synchronized (this) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Forget the listing of the directory that contains f
+     */
+    public void invalidateParent(File f) {
+        if (f != null) {
+            invalidate(f.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    public synchronized String oneLineInfo() {
+        return mEntries.size() + " dirs, " + mBytes / 1024 + "/" + mMaxBytes / 1024 + " KB, hits: " + mHits + " misses: " + mMisses;
+    }
+
+    private static String key(File dir) {
+        try {
+            return dir.getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void remove(String key) {
+        Entry e = mEntries.remove(key);
+        if (e != null) {
+            dropped(e);
+        }
+    }
+
+    private void dropped(Entry e) {
+        mBytes -= e.mBytes;
+        if (e.mWatchKey != null) {
+            e.mWatchKey.cancel();
+            mWatchedDirs.remove(e.mWatchKey);
+        }
+    }
+
+    private WatchKey watch(String dir) {
+        if (mWatchService == null) {
+            return null;
+        }
+        try {
+            WatchKey key = new File(dir).toPath().register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            mWatchedDirs.put(key, dir);
+            return key;
+        } catch (IOException e) {
+            return null; // max age still applies
+        }
+    }
+
+    private void startWatcher() {
+        try {
+            mWatchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            System.err.println("Listing cache can not watch directories, relying on max age (" + e + ")");
+            return;
+        }
+        Thread t = new Thread("ListingCacheWatcher") {
+            @Override
+            public void run() {
+                while (true) {
+                    WatchKey key;
+                    try {
+                        key = mWatchService.take();
+                    } catch (Exception e) {
+                        return;
+                    }
+                    key.pollEvents();
+                    mGeneration.incrementAndGet();
+                    synchronized (ListingCache.this) {
+                        String dir = mWatchedDirs.get(key);
+                        if (dir != null) {
+                            remove(dir);
+                        }
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+}
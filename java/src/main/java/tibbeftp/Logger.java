@@ -1,22 +1,58 @@
 package tibbeftp;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * Per session log files. Lines are handed to a single writer thread through a bounded queue,
+ * the writer keeps the files open and flushes them in batches.
+ *
  * @author jesper
  */
 public class Logger {
 
     private static File LOG_DIR = null;
+    private static volatile boolean logDirCreated = false;
     private static final DateFormat logDateFormat = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss:SSS");
     private static final SimpleDateFormat fileNameDateFormat = new SimpleDateFormat("yyyyMMdd.HHmmss");
 
+    /**
+     * Max number of lines waiting for the writer thread (LOG_QUEUE_SIZE)
+     */
+    static final int QUEUE_CAPACITY;
+    /**
+     * What to do when the queue is full: block the session until there is room, or drop the line
+     * (LOG_OVERFLOW=block|drop)
+     */
+    static final boolean DROP_ON_OVERFLOW;
+
+    static {
+        String queueSizeEnv = System.getenv("LOG_QUEUE_SIZE");
+        QUEUE_CAPACITY = queueSizeEnv == null ? 65536 : Integer.parseInt(queueSizeEnv);
+        DROP_ON_OVERFLOW = "drop".equals(System.getenv("LOG_OVERFLOW"));
+    }
+
+    private static final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queueSize = new AtomicInteger();
+    private static final AtomicLong droppedLines = new AtomicLong();
+    private static volatile Thread writerThread = null;
+    private static volatile boolean writerIdle = false;
+
     private String id;
     private File mLogFile = null;
     private static int errorLoggingToFileCount = 0;
@@ -28,6 +64,7 @@ public class Logger {
      */
     static void setLogDir(File dir) {
         LOG_DIR = dir;
+        startWriter();
     }
 
     public Logger(String id) {
@@ -36,8 +73,15 @@ public class Logger {
          * Create handle to the log file
          */
         if (LOG_DIR != null) {
-            LOG_DIR.mkdirs();
-            mLogFile = new File(LOG_DIR, fileNameDateFormat.format(new Date()) + "_" + id + ".txt");
+            if (!logDirCreated) {
+                LOG_DIR.mkdirs();
+                logDirCreated = true;
+            }
+            String fileDate;
+            synchronized (fileNameDateFormat) {
+                fileDate = fileNameDateFormat.format(new Date());
+            }
+            mLogFile = new File(LOG_DIR, fileDate + "_" + id + ".txt");
         }
     }
 
@@ -49,12 +93,19 @@ public class Logger {
         if (mLogFile != null) {
             File userLogDir = new File(LOG_DIR, user);
             File newLogFile = new File(userLogDir, mLogFile.getName());
-            newLogFile.getParentFile().mkdirs();
-            mLogFile.renameTo(newLogFile);
+            // The writer may still have lines for the old file queued, so it does the rename
+            enqueue(new Record(mLogFile, newLogFile));
             mLogFile = newLogFile;
         }
     }
 
+    /**
+     * @return false if logging is disabled, callers can then skip building messages
+     */
+    public boolean isEnabled() {
+        return mLogFile != null;
+    }
+
     public void info(String msg) {
         log("INFO", msg);
     }
@@ -87,25 +138,263 @@ public class Logger {
     }
 
     public static void logToConsole(String message) {
-        String tmp = logDateFormat.format(new Date()) + "\t" + message.trim();
-        System.out.println(tmp);
+        String date;
+        synchronized (logDateFormat) {
+            date = logDateFormat.format(new Date());
+        }
+        System.out.println(date + "\t" + message.trim());
+    }
+
+    /**
+     * @return number of log lines waiting to be written
+     */
+    public static int getQueueDepth() {
+        return queueSize.get();
+    }
+
+    /**
+     * @return number of log lines thrown away because the queue was full (LOG_OVERFLOW=drop)
+     */
+    public static long getDroppedLines() {
+        return droppedLines.get();
     }
 
     private void log(final String tag, final String message) {
-        String line = logDateFormat.format(new Date()) + "\t" + tag + "\t" + message.trim() + "\r\n";
         if (mLogFile == null) {
             return;
         }
+        enqueue(new Record(System.currentTimeMillis(), tag, message, mLogFile));
+    }
+
+    private static void enqueue(Record r) {
+        while (true) {
+            int size = queueSize.get();
+            if (size < QUEUE_CAPACITY) {
+                if (queueSize.compareAndSet(size, size + 1)) {
+                    break;
+                }
+            } else if (DROP_ON_OVERFLOW && r.mRenameTo == null) {
+                droppedLines.incrementAndGet();
+                return;
+            } else {
+                wakeWriter();
+                LockSupport.parkNanos(100000); // wait for the writer to make room
+            }
+        }
+        queue.add(r);
+        if (writerIdle) {
+            wakeWriter();
+        }
+    }
+
+    private static void wakeWriter() {
+        Thread t = writerThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    private static synchronized void startWriter() {
+        if (writerThread != null) {
+            return;
+        }
+        final Writer writer = new Writer();
+        Thread t = new Thread(writer, "LogWriter");
+        t.setDaemon(true);
+        writerThread = t;
+        t.start();
+        Runtime.getRuntime().addShutdownHook(new Thread("LogWriterShutdown") {
+            @Override
+            public void run() {
+                writer.shutdown();
+            }
+        });
+    }
+
+    /**
+     * A log line, or a request to move a log file (when the user has logged in)
+     */
+    private static class Record {
+        final long mTime;
+        final String mTag;
+        final String mMessage;
+        final File mFile;
+        final File mRenameTo;
+
+        Record(long time, String tag, String message, File file) {
+            mTime = time;
+            mTag = tag;
+            mMessage = message;
+            mFile = file;
+            mRenameTo = null;
+        }
+
+        Record(File from, File to) {
+            mTime = 0;
+            mTag = null;
+            mMessage = null;
+            mFile = from;
+            mRenameTo = to;
+        }
+    }
+
+    /**
+     * The only thread that touches the log files
+     */
+    private static class Writer implements Runnable {
+        private static final int MAX_OPEN_FILES = 256;
+        private static final int MAX_BATCH = 4096;
+        private static final long IDLE_CLOSE_MILLIS = 60000;
+
+        private final DateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss:SSS");
+        private final Map<File, OpenFile> mOpenFiles = new LinkedHashMap<File, OpenFile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, OpenFile> eldest) {
+                if (size() > MAX_OPEN_FILES) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+        private final StringBuilder mLine = new StringBuilder(256);
+        private volatile boolean mShutdown = false;
+
+        @Override
+        public void run() {
+            long nextIdleCheck = System.currentTimeMillis() + IDLE_CLOSE_MILLIS;
+            while (!mShutdown) {
+                int written = writeBatch();
+                if (written == 0) {
+                    long now = System.currentTimeMillis();
+                    if (now >= nextIdleCheck) {
+                        closeIdleFiles(now);
+                        nextIdleCheck = now + IDLE_CLOSE_MILLIS;
+                    }
+                    writerIdle = true;
+                    if (queue.isEmpty()) {
+                        LockSupport.parkNanos(100 * 1000000L);
+                    }
+                    writerIdle = false;
+                }
+            }
+        }
 
         /**
-         * Create and open log file
+         * Write up to MAX_BATCH queued records, then flush every file that was written to
+         *
+         * @return the number of records processed
          */
-        try (FileOutputStream fos = new FileOutputStream(mLogFile.getPath(), true)) {
-            fos.write(line.getBytes());
-        } catch (Exception e) {
-            if (errorLoggingToFileCount < 100) {
-                errorLoggingToFileCount++;
-                System.err.println(line);
+        private synchronized int writeBatch() {
+            int n = 0;
+            Record r;
+            while (n < MAX_BATCH && (r = queue.poll()) != null) {
+                queueSize.decrementAndGet();
+                n++;
+                if (r.mRenameTo != null) {
+                    rename(r.mFile, r.mRenameTo);
+                } else {
+                    write(r);
+                }
+            }
+            if (n > 0) {
+                for (OpenFile f : mOpenFiles.values()) {
+                    f.flush();
+                }
+            }
+            return n;
+        }
+
+        private void write(Record r) {
+            mLine.setLength(0);
+            mLine.append(mDateFormat.format(new Date(r.mTime))).append('\t').append(r.mTag).append('\t')
+                    .append(r.mMessage.trim()).append("\r\n");
+            String line = mLine.toString();
+            OpenFile f = mOpenFiles.get(r.mFile);
+            try {
+                if (f == null) {
+                    f = new OpenFile(r.mFile);
+                    mOpenFiles.put(r.mFile, f);
+                }
+                f.write(line.getBytes());
+            } catch (Exception e) {
+                if (f != null) {
+                    mOpenFiles.remove(r.mFile);
+                    f.close();
+                }
+                if (errorLoggingToFileCount < 100) {
+                    errorLoggingToFileCount++;
+                    System.err.println(line);
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void rename(File from, File to) {
+            OpenFile f = mOpenFiles.remove(from);
+            if (f != null) {
+                f.close();
+            }
+            to.getParentFile().mkdirs();
+            from.renameTo(to);
+        }
+
+        private void closeIdleFiles(long now) {
+            Iterator<OpenFile> it = mOpenFiles.values().iterator();
+            while (it.hasNext()) {
+                OpenFile f = it.next();
+                if (now - f.mLastWrite > IDLE_CLOSE_MILLIS) {
+                    f.close();
+                    it.remove();
+                }
+            }
+        }
+
+        void shutdown() {
+            mShutdown = true;
+            synchronized (this) {
+                while (writeBatch() > 0) {
+                    // drain what the sessions managed to queue
+                }
+                for (OpenFile f : mOpenFiles.values()) {
+                    f.close();
+                }
+                mOpenFiles.clear();
+            }
+        }
+    }
+
+    private static class OpenFile {
+        private final OutputStream mOut;
+        private boolean mDirty = false;
+        long mLastWrite;
+
+        OpenFile(File file) throws IOException {
+            mOut = new BufferedOutputStream(new FileOutputStream(file.getPath(), true), 16 * 1024);
+        }
+
+        void write(byte[] b) throws IOException {
+            mOut.write(b);
+            mDirty = true;
+            mLastWrite = System.currentTimeMillis();
+        }
+
+        void flush() {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            try {
+                mOut.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void close() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         }
@@ -15,6 +15,13 @@ public class Main {
         return ftpHome;
     }
 
+    /**
+     * For running the server inside another program (benchmarks), main() sets it from the arguments
+     */
+    static void setFtpHome(File dir) {
+        ftpHome = dir;
+    }
+
     /**
      * @param args the command line arguments
      */
@@ -22,12 +29,13 @@ public class Main {
         System.out.println("TibbeFTP version: " + MyFTP.VERSION);
 
         if (args.length == 0) {
-            System.err.println("SYNTAX: java -jar TibbeFTP.jar <ftp-base> |-disable-logging| |-port=CommandPort|:DataPortMin-DataPortMax|");
+            System.err.println("SYNTAX: java -jar TibbeFTP.jar <ftp-base> |-disable-logging| |-port=CommandPort|:DataPortMin-DataPortMax| |-engine=nio|:Workers|:TransferThreads||| |-threads=virtual| |-pasv=shared| |-metrics-port=Port| |-atomic-uploads|");
             System.exit(1);
         }
 
         System.out.println("PASV_PROMISCUOUS: " + MyFTP.PASV_PROMISCUOUS);
         System.out.println("PASV_TIMEOUT: " + MyFTP.PASV_TIMEOUT + " ms");
+        System.out.println("LISTING_CACHE_MB: " + MyFTP.LISTING_CACHE_BYTES / 1024 / 1024);
         String ftpIp = System.getenv("FTP_IP");
         if (ftpIp != null) {
             System.out.println("Passive server IP set to " + ftpIp);
@@ -52,6 +60,36 @@ public class Main {
                     MyFTP.PASV_RANGE_MAX = Integer.parseInt(dataPortRange[1]);
                 }
             }
+            if (tmp.startsWith("-engine=nio")) {
+                MyFTP.NIO_ENGINE = true;
+                String[] engine = tmp.substring(8).split(":");
+                if (engine.length > 1) {
+                    MyFTP.NIO_WORKERS = Integer.parseInt(engine[1]);
+                }
+                if (engine.length > 2) {
+                    MyFTP.NIO_TRANSFER_THREADS = Integer.parseInt(engine[2]);
+                }
+                System.out.println("Using NIO engine with " + MyFTP.NIO_WORKERS + " workers and " + MyFTP.NIO_TRANSFER_THREADS + " transfer threads");
+            }
+            if ("-pasv=shared".equals(tmp)) {
+                MyFTP.PASV_SHARED = true;
+                System.out.println("Passive data connections share the data ports");
+            }
+            if ("-atomic-uploads".equals(tmp)) {
+                MyFTP.ATOMIC_UPLOADS = true;
+                System.out.println("Uploads are written to a temp file, synced and renamed when complete");
+            }
+            if (tmp.startsWith("-metrics-port=")) {
+                MyFTP.METRICS_PORT = Integer.parseInt(tmp.substring(14));
+            }
+            if ("-threads=virtual".equals(tmp)) {
+                if (MyFTP.virtualThreadsSupported()) {
+                    MyFTP.VIRTUAL_THREADS = true;
+                    System.out.println("Running sessions on virtual threads");
+                } else {
+                    System.out.println("Virtual threads not supported by java " + System.getProperty("java.version") + ", using platform threads");
+                }
+            }
         }
 
         if (!disableLogging) {
@@ -0,0 +1,412 @@
+package tibbeftp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Server counters and command latency histograms. Everything is counted in LongAdders, so
+ * sessions updating them at the same time don't contend. Published as JMX MBeans and, with
+ * -metrics-port, as Prometheus text on http://127.0.0.1:port/metrics
+ *
+ * @author jesper
+ */
+public class Metrics {
+    /**
+     * Latency bucket i counts durations below 2^i microseconds, the last one everything longer
+     */
+    private static final int BUCKETS = 27;
+
+    private final MyFTP mMyFTP;
+    private final LongAdder mConnectionsAccepted = new LongAdder();
+    private final LongAdder mLoginsOk = new LongAdder();
+    private final LongAdder mLoginsFailed = new LongAdder();
+    private final LongAdder mCommandsRejected = new LongAdder();
+    private final Transfers mDownloads = new Transfers();
+    private final Transfers mUploads = new Transfers();
+    private final CommandStats[] mCommands = new CommandStats[Command.values().length];
+    private HttpServer mHttpServer = null;
+
+    public Metrics(MyFTP myftp) {
+        mMyFTP = myftp;
+        for (Command c : Command.values()) {
+            mCommands[c.ordinal()] = new CommandStats(c);
+        }
+    }
+
+    void connectionAccepted() {
+        mConnectionsAccepted.increment();
+    }
+
+    void login(boolean ok) {
+        (ok ? mLoginsOk : mLoginsFailed).increment();
+    }
+
+    /**
+     * An unknown verb, or a command refused before login
+     */
+    void commandRejected() {
+        mCommandsRejected.increment();
+    }
+
+    void commandExecuted(Command command, long nanos) {
+        mCommands[command.ordinal()].add(nanos);
+    }
+
+    /**
+     * @param bytes bytes sent to the client
+     * @param millis time from data connection to last byte
+     */
+    void download(long bytes, long millis) {
+        mDownloads.add(bytes, millis);
+    }
+
+    /**
+     * @param bytes bytes received from the client
+     * @param millis time from data connection to last byte
+     */
+    void upload(long bytes, long millis) {
+        mUploads.add(bytes, millis);
+    }
+
+    public long getConnectionsAccepted() {
+        return mConnectionsAccepted.sum();
+    }
+
+    /**
+     * Register the MBeans: tibbeftp:type=Server and one tibbeftp:type=Command,name=VERB per command
+     */
+    void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new StandardMBean(new ServerMBeanImpl(), ServerMBean.class),
+                    new ObjectName("tibbeftp:type=Server"));
+            for (CommandStats stats : mCommands) {
+                server.registerMBean(new StandardMBean(stats, CommandMBean.class),
+                        new ObjectName("tibbeftp:type=Command,name=" + stats.mCommand));
+            }
+        } catch (JMException e) {
+            System.err.println("Unable to register MBeans (" + e + ")");
+        }
+    }
+
+    /**
+     * Serve the Prometheus text format on the loopback interface only
+     */
+    void startHttp(int port) throws IOException {
+        mHttpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16);
+        mHttpServer.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = prometheusText().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        mHttpServer.start();
+        System.out.println("Metrics on http://" + mHttpServer.getAddress().getAddress().getHostAddress() + ":"
+                + mHttpServer.getAddress().getPort() + "/metrics");
+    }
+
+    String prometheusText() {
+        StringBuilder sb = new StringBuilder(4096);
+        header(sb, "tibbeftp_connections_accepted_total", "counter", "Control connections accepted");
+        sb.append("tibbeftp_connections_accepted_total ").append(mConnectionsAccepted.sum()).append('\n');
+        header(sb, "tibbeftp_sessions_active", "gauge", "Sessions currently connected");
+        sb.append("tibbeftp_sessions_active ").append(mMyFTP.getActiveSessions()).append('\n');
+        header(sb, "tibbeftp_logins_total", "counter", "PASS commands by result");
+        sb.append("tibbeftp_logins_total{result=\"ok\"} ").append(mLoginsOk.sum()).append('\n');
+        sb.append("tibbeftp_logins_total{result=\"failed\"} ").append(mLoginsFailed.sum()).append('\n');
+        header(sb, "tibbeftp_commands_rejected_total", "counter", "Unknown commands and commands refused before login");
+        sb.append("tibbeftp_commands_rejected_total ").append(mCommandsRejected.sum()).append('\n');
+        BufferPool pool = mMyFTP.getBufferPool();
+        header(sb, "tibbeftp_buffer_pool_bytes", "gauge", "Pooled I/O buffers by state");
+        sb.append("tibbeftp_buffer_pool_bytes{state=\"in_use\"} ").append(pool.getInUseBytes()).append('\n');
+        sb.append("tibbeftp_buffer_pool_bytes{state=\"idle\"} ").append(pool.getIdleBytes()).append('\n');
+        header(sb, "tibbeftp_buffer_pool_leases_total", "counter", "Buffers leased from the pool by result");
+        sb.append("tibbeftp_buffer_pool_leases_total{result=\"hit\"} ").append(pool.getHits()).append('\n');
+        sb.append("tibbeftp_buffer_pool_leases_total{result=\"miss\"} ").append(pool.getLeases() - pool.getHits()).append('\n');
+        Admission admission = mMyFTP.getAdmission();
+        header(sb, "tibbeftp_admission_rejected_total", "counter", "Connections and logins refused by the session limits");
+        sb.append("tibbeftp_admission_rejected_total{reason=\"full\"} ").append(admission.getRejectedFull()).append('\n');
+        sb.append("tibbeftp_admission_rejected_total{reason=\"ip\"} ").append(admission.getRejectedIp()).append('\n');
+        sb.append("tibbeftp_admission_rejected_total{reason=\"account\"} ").append(admission.getRejectedAccount()).append('\n');
+
+        header(sb, "tibbeftp_command_duration_seconds", "histogram", "Time to execute a command, transfers included");
+        for (CommandStats stats : mCommands) {
+            long count = stats.mCount.sum();
+            if (count == 0) {
+                continue;
+            }
+            String label = "tibbeftp_command_duration_seconds_bucket{command=\"" + stats.mCommand + "\",le=\"";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                cumulative += stats.mBuckets[i].sum();
+                sb.append(label).append((1L << i) / 1e6).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(label).append("+Inf\"} ").append(count).append('\n');
+            sb.append("tibbeftp_command_duration_seconds_sum{command=\"").append(stats.mCommand).append("\"} ")
+                    .append(stats.mNanos.sum() / 1e9).append('\n');
+            sb.append("tibbeftp_command_duration_seconds_count{command=\"").append(stats.mCommand).append("\"} ")
+                    .append(count).append('\n');
+        }
+
+        header(sb, "tibbeftp_transfer_bytes_total", "counter", "File data transferred");
+        mDownloads.append(sb, "tibbeftp_transfer_bytes_total", "out", mDownloads.mBytes);
+        mUploads.append(sb, "tibbeftp_transfer_bytes_total", "in", mUploads.mBytes);
+        header(sb, "tibbeftp_transfers_total", "counter", "Completed RETR and STOR/APPE transfers");
+        mDownloads.append(sb, "tibbeftp_transfers_total", "out", mDownloads.mCount);
+        mUploads.append(sb, "tibbeftp_transfers_total", "in", mUploads.mCount);
+        header(sb, "tibbeftp_transfer_seconds_total", "counter", "Time spent transferring, bytes divided by this is the throughput");
+        sb.append("tibbeftp_transfer_seconds_total{direction=\"out\"} ").append(mDownloads.mMillis.sum() / 1e3).append('\n');
+        sb.append("tibbeftp_transfer_seconds_total{direction=\"in\"} ").append(mUploads.mMillis.sum() / 1e3).append('\n');
+
+        SharedPassiveListener shared = mMyFTP.getSharedPassive();
+        PassivePortAllocator ports = mMyFTP.getPassivePorts();
+        if (shared != null) {
+            header(sb, "tibbeftp_pasv_ports", "gauge", "Shared passive data ports");
+            sb.append("tibbeftp_pasv_ports ").append(shared.getPortCount()).append('\n');
+            header(sb, "tibbeftp_pasv_waiting", "gauge", "Sessions waiting for a passive data connection");
+            sb.append("tibbeftp_pasv_waiting ").append(shared.getWaiting()).append('\n');
+        } else if (ports != null) {
+            header(sb, "tibbeftp_pasv_ports", "gauge", "Passive data ports in the range");
+            sb.append("tibbeftp_pasv_ports ").append(ports.getSize()).append('\n');
+            header(sb, "tibbeftp_pasv_ports_leased", "gauge", "Passive data ports in use");
+            sb.append("tibbeftp_pasv_ports_leased ").append(ports.getLeased()).append('\n');
+            header(sb, "tibbeftp_pasv_waiting", "gauge", "Sessions waiting for a free passive data port");
+            sb.append("tibbeftp_pasv_waiting ").append(ports.getWaiting()).append('\n');
+        }
+
+        header(sb, "tibbeftp_log_queue_depth", "gauge", "Log lines waiting to be written");
+        sb.append("tibbeftp_log_queue_depth ").append(Logger.getQueueDepth()).append('\n');
+        header(sb, "tibbeftp_log_dropped_total", "counter", "Log lines dropped because the queue was full");
+        sb.append("tibbeftp_log_dropped_total ").append(Logger.getDroppedLines()).append('\n');
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Transfers in one direction
+     */
+    private static class Transfers {
+        final LongAdder mCount = new LongAdder();
+        final LongAdder mBytes = new LongAdder();
+        final LongAdder mMillis = new LongAdder();
+
+        void add(long bytes, long millis) {
+            mCount.increment();
+            mBytes.add(bytes);
+            mMillis.add(millis);
+        }
+
+        void append(StringBuilder sb, String name, String direction, LongAdder value) {
+            sb.append(name).append("{direction=\"").append(direction).append("\"} ").append(value.sum()).append('\n');
+        }
+
+        double kBps() {
+            return mBytes.sum() / 1.024 / Math.max(1, mMillis.sum());
+        }
+    }
+
+    public interface CommandMBean {
+        long getCount();
+
+        double getMeanMillis();
+
+        /**
+         * Upper bound of the latency bucket holding the median
+         */
+        double getP50Millis();
+
+        double getP99Millis();
+    }
+
+    /**
+     * Count and latency histogram of one command
+     */
+    private static class CommandStats implements CommandMBean {
+        final Command mCommand;
+        final LongAdder mCount = new LongAdder();
+        final LongAdder mNanos = new LongAdder();
+        final LongAdder[] mBuckets = new LongAdder[BUCKETS];
+
+        CommandStats(Command command) {
+            mCommand = command;
+            for (int i = 0; i < BUCKETS; i++) {
+                mBuckets[i] = new LongAdder();
+            }
+        }
+
+        void add(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            mBuckets[Math.min(bucket, BUCKETS - 1)].increment();
+            mNanos.add(nanos);
+            mCount.increment();
+        }
+
+        @Override
+        public long getCount() {
+            return mCount.sum();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long count = mCount.sum();
+            return count == 0 ? 0 : mNanos.sum() / 1e6 / count;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return quantile(0.5);
+        }
+
+        @Override
+        public double getP99Millis() {
+            return quantile(0.99);
+        }
+
+        private double quantile(double q) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mBuckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                cumulative += counts[i];
+                if (cumulative >= rank) {
+                    return (1L << i) / 1e3;
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    public interface ServerMBean {
+        long getConnectionsAccepted();
+
+        int getActiveSessions();
+
+        long getLoginsOk();
+
+        long getLoginsFailed();
+
+        long getCommandsRejected();
+
+        long getBytesIn();
+
+        long getBytesOut();
+
+        long getUploads();
+
+        long getDownloads();
+
+        double getUploadKBps();
+
+        double getDownloadKBps();
+
+        int getLogQueueDepth();
+
+        long getLogDroppedLines();
+
+        String getPasvPorts();
+    }
+
+    private class ServerMBeanImpl implements ServerMBean {
+        @Override
+        public long getConnectionsAccepted() {
+            return mConnectionsAccepted.sum();
+        }
+
+        @Override
+        public int getActiveSessions() {
+            return mMyFTP.getActiveSessions();
+        }
+
+        @Override
+        public long getLoginsOk() {
+            return mLoginsOk.sum();
+        }
+
+        @Override
+        public long getLoginsFailed() {
+            return mLoginsFailed.sum();
+        }
+
+        @Override
+        public long getCommandsRejected() {
+            return mCommandsRejected.sum();
+        }
+
+        @Override
+        public long getBytesIn() {
+            return mUploads.mBytes.sum();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return mDownloads.mBytes.sum();
+        }
+
+        @Override
+        public long getUploads() {
+            return mUploads.mCount.sum();
+        }
+
+        @Override
+        public long getDownloads() {
+            return mDownloads.mCount.sum();
+        }
+
+        @Override
+        public double getUploadKBps() {
+            return mUploads.kBps();
+        }
+
+        @Override
+        public double getDownloadKBps() {
+            return mDownloads.kBps();
+        }
+
+        @Override
+        public int getLogQueueDepth() {
+            return Logger.getQueueDepth();
+        }
+
+        @Override
+        public long getLogDroppedLines() {
+            return Logger.getDroppedLines();
+        }
+
+        @Override
+        public String getPasvPorts() {
+            if (mMyFTP.getSharedPassive() != null) {
+                return mMyFTP.getSharedPassive().oneLineInfo();
+            }
+            return mMyFTP.getPassivePorts() == null ? "any" : mMyFTP.getPassivePorts().oneLineInfo();
+        }
+    }
+}
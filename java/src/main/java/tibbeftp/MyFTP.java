@@ -1,8 +1,14 @@
 package tibbeftp;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author jesper
@@ -14,6 +20,14 @@ public class MyFTP {
     public static int PASV_RANGE_MAX = 8129;
     public static final boolean PASV_PROMISCUOUS = "true".equals(System.getenv("PASV_PROMISCUOUS"));
     public static final int PASV_TIMEOUT;
+    public static final long LISTING_CACHE_BYTES;
+    public static boolean NIO_ENGINE = false;
+    public static int NIO_WORKERS = Runtime.getRuntime().availableProcessors() * 2;
+    public static int NIO_TRANSFER_THREADS = 64;
+    public static boolean VIRTUAL_THREADS = false;
+    public static boolean PASV_SHARED = false;
+    public static int METRICS_PORT = 0;
+    public static boolean ATOMIC_UPLOADS = false;
 
     static {
         String tmp = MyFTP.class.getPackage().getImplementationVersion();
@@ -24,45 +38,304 @@ public class MyFTP {
         }
         String pasvTimeoutEnv = System.getenv("PASV_TIMEOUT");
         PASV_TIMEOUT = pasvTimeoutEnv == null ? 30000 : Integer.parseInt(pasvTimeoutEnv) * 1000;
+        String listingCacheEnv = System.getenv("LISTING_CACHE_MB");
+        LISTING_CACHE_BYTES = (listingCacheEnv == null ? 32 : Long.parseLong(listingCacheEnv)) * 1024 * 1024;
     }
 
     private final ThreadGroup tg = new ThreadGroup("Connections");
-    private int mTotalConnections = 0;
+    private final Set<ConnectionHandler> mSessions = Collections.newSetFromMap(new ConcurrentHashMap<ConnectionHandler, Boolean>());
+    private final Metrics mMetrics = new Metrics(this);
+    private final Bandwidth mBandwidth = new Bandwidth();
+    private final Admission mAdmission = new Admission();
+    private final BufferPool mBufferPool = new BufferPool(!VIRTUAL_THREADS);
+    private final GroupCommit mGroupCommit = new GroupCommit();
+    private final Checksums mChecksums = new Checksums(mBufferPool);
+    private final ListingCache mListingCache = new ListingCache(LISTING_CACHE_BYTES);
+    private final PassivePortAllocator mPassivePorts;
+    private SharedPassiveListener mSharedPassive = null;
+    private final CountDownLatch mStarted = new CountDownLatch(1);
+    private volatile int mLocalPort = 0;
+
+    /**
+     * Thread.ofVirtual() and Thread.Builder name/start, looked up by reflection so that we
+     * still run on java 8. All null if the running JVM has no virtual threads.
+     */
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_START;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderStart = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name", String.class);
+            builderStart = builder.getMethod("start", Runnable.class);
+            // Preview releases (19, 20) have the methods but refuse to run them
+            builderStart.invoke(ofVirtual.invoke(null), new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        } catch (Throwable e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_START = builderStart;
+    }
+
+    /**
+     * @return true if the JVM is able to run sessions on virtual threads
+     */
+    public static boolean virtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
 
     /**
      * Creates a new instance of MyFTP
      */
     public MyFTP() {
+        mPassivePorts = PASV_RANGE_MIN == 0 ? null : new PassivePortAllocator(PASV_RANGE_MIN, PASV_RANGE_MAX);
     }
 
     public String getSysInfo() {
-        String ret = "211-SysInfo:\r\n";
-        ret += "--- TibbeFTP " + VERSION + " ---\r\n";
-        ret += "  Total connections: " + mTotalConnections + "\r\n";
-        ret += "  Active threads: " + tg.activeCount() + "\r\n";
-
-        Thread[] threads = new Thread[tg.activeCount() + 10];
-        int num = tg.enumerate(threads);
-        for (int i = 0; i < num; i++) {
-            ConnectionHandler ch = (ConnectionHandler) threads[i];
-            ret += "    " + ch.oneLineInfo() + "\r\n";
+        StringBuilder ret = new StringBuilder("211-SysInfo:\r\n");
+        ret.append("--- TibbeFTP ").append(VERSION).append(" ---\r\n");
+        ret.append("  Total connections: ").append(mMetrics.getConnectionsAccepted()).append("\r\n");
+        if (NIO_ENGINE) {
+            ret.append("  Engine: nio (").append(NIO_WORKERS).append(" workers, ").append(NIO_TRANSFER_THREADS).append(" transfer threads)\r\n");
+        } else if (VIRTUAL_THREADS) {
+            ret.append("  Engine: virtual thread per connection\r\n");
+        } else {
+            ret.append("  Engine: thread per connection\r\n");
+            ret.append("  Active threads: ").append(tg.activeCount()).append("\r\n");
+        }
+        ret.append("  Active sessions: ").append(mSessions.size()).append("\r\n");
+        ret.append("  Admission: ").append(mAdmission.oneLineInfo()).append("\r\n");
+        ret.append("  Log queue: ").append(Logger.getQueueDepth()).append("/").append(Logger.QUEUE_CAPACITY)
+                .append(" dropped: ").append(Logger.getDroppedLines()).append("\r\n");
+        if (mSharedPassive != null) {
+            ret.append("  PASV ports ").append(PASV_RANGE_MIN).append("-").append(PASV_RANGE_MAX).append(": ")
+                    .append(mSharedPassive.oneLineInfo()).append("\r\n");
+        } else if (mPassivePorts != null) {
+            ret.append("  PASV ports ").append(PASV_RANGE_MIN).append("-").append(PASV_RANGE_MAX).append(": ")
+                    .append(mPassivePorts.oneLineInfo()).append("\r\n");
+        }
+        ret.append("  Bandwidth: ").append(mBandwidth.oneLineInfo()).append("\r\n");
+        ret.append("  Listing cache: ").append(mListingCache.oneLineInfo()).append("\r\n");
+        ret.append("  Buffer pool: ").append(mBufferPool.oneLineInfo()).append("\r\n");
+        if (ATOMIC_UPLOADS) {
+            ret.append("  Atomic uploads: ").append(mGroupCommit.oneLineInfo()).append("\r\n");
+        }
+        ret.append("  Checksums: ").append(mChecksums.oneLineInfo()).append("\r\n");
+
+        for (ConnectionHandler ch : mSessions) {
+            ret.append("    ").append(ch.oneLineInfo()).append("\r\n");
+        }
+
+        ret.append("211 End");
+        return ret.toString();
+    }
+
+    /**
+     * Start the session loop on a virtual thread if enabled, otherwise on a platform thread in the
+     * connections thread group
+     */
+    private void startSessionThread(ConnectionHandler ch, String name) {
+        if (VIRTUAL_THREADS) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                BUILDER_START.invoke(builder, ch);
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        new Thread(tg, ch, name).start();
+    }
+
+    /**
+     * @return the directory listings shared by all sessions
+     */
+    ListingCache getListingCache() {
+        return mListingCache;
+    }
+
+    /**
+     * @return the passive port range, null if passive server sockets may use any port
+     */
+    PassivePortAllocator getPassivePorts() {
+        return mPassivePorts;
+    }
+
+    /**
+     * @return the shared passive listeners, null unless -pasv=shared
+     */
+    SharedPassiveListener getSharedPassive() {
+        return mSharedPassive;
+    }
+
+    /**
+     * @return the checksums for HASH and X* with their cache
+     */
+    Checksums getChecksums() {
+        return mChecksums;
+    }
+
+    /**
+     * @return the committer for -atomic-uploads
+     */
+    GroupCommit getGroupCommit() {
+        return mGroupCommit;
+    }
+
+    /**
+     * @return the I/O buffers shared by all sessions
+     */
+    BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * @return the session limits
+     */
+    Admission getAdmission() {
+        return mAdmission;
+    }
+
+    /**
+     * @return the transfer rate limits
+     */
+    Bandwidth getBandwidth() {
+        return mBandwidth;
+    }
+
+    Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    int getActiveSessions() {
+        return mSessions.size();
+    }
+
+    /**
+     * Register a newly accepted session (shown in INFOSYS)
+     */
+    void sessionOpened(ConnectionHandler ch) {
+        mMetrics.connectionAccepted();
+        mSessions.add(ch);
+    }
+
+    /**
+     * Undo the admission and close the socket of a connection whose session could not be started
+     * (no thread, no memory), or failed starts would use up MAX_SESSIONS for good
+     *
+     * @param ch null if it wasn't created
+     */
+    void abandonConnection(ConnectionHandler ch, Socket s, int admission) {
+        if (ch != null) {
+            sessionClosed(ch);
+        }
+        mAdmission.abandon(s.getInetAddress(), admission);
+        try {
+            s.close();
+        } catch (IOException e) {
         }
+    }
+
+    /**
+     * Called by the session itself once it has released its sockets
+     */
+    void sessionClosed(ConnectionHandler ch) {
+        mSessions.remove(ch);
+    }
 
-        ret += "211 End";
-        return ret;
+    /**
+     * Called by the engine once the control port is bound
+     */
+    void listening(int port) {
+        mLocalPort = port;
+        mStarted.countDown();
+    }
+
+    /**
+     * Wait for run() (in another thread) to bind the control port, for running the server inside
+     * another program. FTP_PORT may be 0 to listen on any free port.
+     *
+     * @return the control port, 0 if the server failed to start or did not start in time
+     */
+    public int awaitListening(long timeoutMillis) throws InterruptedException {
+        mStarted.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        return mLocalPort;
     }
 
     public void run() {
+        try {
+            serve();
+        } finally {
+            mStarted.countDown(); // don't keep awaitListening() waiting if we failed to start
+        }
+    }
+
+    private void serve() {
+        if (PASV_SHARED) {
+            if (PASV_RANGE_MIN == 0) {
+                System.err.println("Shared passive mode needs a data port range");
+                return;
+            }
+            try {
+                mSharedPassive = new SharedPassiveListener(PASV_RANGE_MIN, PASV_RANGE_MAX);
+            } catch (IOException e) {
+                System.err.println("Unable to bind shared passive ports " + PASV_RANGE_MIN + "-" + PASV_RANGE_MAX + " (" + e + ")");
+                return;
+            }
+        }
+        if (ATOMIC_UPLOADS) {
+            mGroupCommit.sweep(Account.getHomeDirs());
+        }
+        mMetrics.registerMBeans();
+        if (METRICS_PORT != 0) {
+            try {
+                mMetrics.startHttp(METRICS_PORT);
+            } catch (IOException e) {
+                System.err.println("Unable to bind metrics port " + METRICS_PORT + " (" + e + ")");
+                return;
+            }
+        }
+        if (NIO_ENGINE) {
+            new NioControlServer(this, NIO_WORKERS, NIO_TRANSFER_THREADS).run();
+            return;
+        }
         ServerSocket ss = null;
         try {
             ss = new ServerSocket(FTP_PORT);
-            System.out.println("Listening on port : " + FTP_PORT + " passive-data-ports: " + PASV_RANGE_MIN + "-" + PASV_RANGE_MAX);
+            listening(ss.getLocalPort());
+            System.out.println("Listening on port : " + ss.getLocalPort() + " passive-data-ports: " + PASV_RANGE_MIN + "-" + PASV_RANGE_MAX);
             while (true) {
                 try {
                     Socket s = ss.accept();
-                    mTotalConnections++;
+                    int admission = mAdmission.tryAdmit(s.getInetAddress());
+                    if (admission == Admission.REJECTED_IP || admission == Admission.REJECTED_FULL) {
+                        Admission.reject(s, admission);
+                        continue;
+                    }
                     Logger.logToConsole("New connection from " + s.getInetAddress());
-                    new ConnectionHandler(tg, this, s).start();
+                    ConnectionHandler ch = null;
+                    boolean started = false;
+                    try {
+                        ch = new ConnectionHandler(this, s);
+                        ch.setAdmission(admission);
+                        sessionOpened(ch);
+                        startSessionThread(ch, "Connection_" + s.getInetAddress());
+                        started = true;
+                    } finally {
+                        if (!started) {
+                            abandonConnection(ch, s, admission);
+                        }
+                    }
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
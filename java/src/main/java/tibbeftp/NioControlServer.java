@@ -0,0 +1,476 @@
+package tibbeftp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event driven engine for the control connections. One selector thread reads command lines
+ * for all sessions, complete lines are executed by a fixed worker pool using the normal
+ * ConnectionHandler command semantics. An idle session only costs its buffers, no thread.
+ * <p>
+ * Commands that block for as long as a data connection (LIST, RETR, STOR, ...) or a checksum
+ * runs, that wait for a passive port or connect out (PASV, PORT), and connections waiting in the admission queue, are handed to a separate fixed pool of
+ * transfer threads, so they never hold up the short commands of other sessions. When all
+ * transfer threads are busy, further transfers wait for one.
+ * <p>
+ * A session has at most one task queued or running in either pool, and is not read from once
+ * MAX_QUEUED_LINES lines are waiting, so the pools' queues are bounded by the number of sessions
+ * (MAX_SESSIONS) and the memory per session.
+ *
+ * @author jesper
+ */
+public class NioControlServer {
+    private static final int MAX_LINE = ControlLineReader.MAX_LINE;
+    private static final int MAX_QUEUED_LINES = 64; // stop reading a client that floods us
+    private static final Set<Command> BLOCKING_COMMANDS = EnumSet.of(Command.PORT, Command.PASV, Command.LIST, Command.NLST, Command.MLSD,
+            Command.RETR, Command.STOR, Command.APPE, Command.HASH, Command.XCRC, Command.XMD5, Command.XSHA1, Command.XSHA256);
+
+    private final MyFTP mMyFTP;
+    private final ThreadPoolExecutor mWorkers;
+    private final ThreadPoolExecutor mTransfers;
+    private final ConcurrentLinkedQueue<Runnable> mSelectorTasks = new ConcurrentLinkedQueue<>();
+    private Selector mSelector;
+
+    /**
+     * @param workers threads for commands
+     * @param transfers threads for transfers and other blocking commands
+     */
+    public NioControlServer(MyFTP myftp, int workers, int transfers) {
+        mMyFTP = myftp;
+        mWorkers = newPool(workers, "NioWorker_");
+        mTransfers = newPool(transfers, "NioTransfer_");
+    }
+
+    /**
+     * @return a pool of at most threads threads, idle ones retire after a minute
+     */
+    private ThreadPoolExecutor newPool(int threads, final String name) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            mMyFTP.getBufferPool().releaseThreadCache(); // idle thread retired
+                        }
+                    }
+                }, name + threadCount.incrementAndGet());
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @return true if the command line starts with a verb that blocks while data flows
+     */
+    private static boolean isBlocking(byte[] line) {
+        int verbLen = 0;
+        while (verbLen < line.length && (line[verbLen] & 0xff) > ' ') {
+            verbLen++;
+        }
+        Command command = Command.lookup(line, 0, verbLen);
+        return command != null && BLOCKING_COMMANDS.contains(command);
+    }
+
+    public void run() {
+        ServerSocketChannel ssc = null;
+        try {
+            mSelector = Selector.open();
+            ssc = ServerSocketChannel.open();
+            ssc.socket().bind(new InetSocketAddress(MyFTP.FTP_PORT));
+            ssc.configureBlocking(false);
+            ssc.register(mSelector, SelectionKey.OP_ACCEPT);
+            mMyFTP.listening(ssc.socket().getLocalPort());
+            System.out.println("Listening on port : " + ssc.socket().getLocalPort() + " passive-data-ports: " + MyFTP.PASV_RANGE_MIN + "-" + MyFTP.PASV_RANGE_MAX
+                    + " (nio engine, " + mWorkers.getCorePoolSize() + " workers, " + mTransfers.getCorePoolSize() + " transfer threads)");
+
+            long nextTimeoutCheck = System.currentTimeMillis() + 1000;
+            while (true) {
+                mSelector.select(1000);
+
+                Runnable task;
+                while ((task = mSelectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(ssc);
+                        } else {
+                            Session session = (Session) key.attachment();
+                            if (key.isWritable()) {
+                                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                                session.writable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                session.read();
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextTimeoutCheck) {
+                    nextTimeoutCheck = now + 1000;
+                    for (SelectionKey key : mSelector.keys()) {
+                        if (key.attachment() instanceof Session) {
+                            ((Session) key.attachment()).checkTimeout(now);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to bind port " + MyFTP.FTP_PORT + " (" + e + ")");
+        } finally {
+            if (ssc != null) {
+                try {
+                    ssc.close();
+                } catch (IOException e) {
+                }
+            }
+            mWorkers.shutdown();
+            mTransfers.shutdown();
+        }
+    }
+
+    private void accept(ServerSocketChannel ssc) throws IOException {
+        SocketChannel sc = ssc.accept();
+        if (sc == null) {
+            return;
+        }
+        int admission = mMyFTP.getAdmission().tryAdmit(sc.socket().getInetAddress());
+        if (admission == Admission.REJECTED_IP || admission == Admission.REJECTED_FULL) {
+            Admission.reject(sc.socket(), admission); // still in blocking mode, the reply is tiny
+            return;
+        }
+        Logger.logToConsole("New connection from " + sc.socket().getInetAddress());
+        Session session = null;
+        boolean started = false;
+        try {
+            sc.configureBlocking(false);
+            SelectionKey key = sc.register(mSelector, SelectionKey.OP_READ);
+            session = new Session(sc, key);
+            key.attach(session);
+            session.start(admission);
+            started = true;
+        } finally {
+            if (!started) {
+                // closing the channel also cancels its key
+                mMyFTP.abandonConnection(session == null ? null : session.mHandler, sc.socket(), admission);
+            }
+        }
+    }
+
+    /**
+     * Run something on the selector thread (interest ops must not be changed while selecting)
+     */
+    private void onSelectorThread(Runnable r) {
+        mSelectorTasks.add(r);
+        mSelector.wakeup();
+    }
+
+    /**
+     * State for one control connection
+     */
+    class Session {
+        private final SocketChannel mChannel;
+        private final SelectionKey mKey;
+        private final ByteBuffer mReadBuffer = ByteBuffer.allocate(MAX_LINE);
+        private final byte[] mLine = new byte[MAX_LINE];
+        private int mLineLen = 0;
+        private final ArrayDeque<byte[]> mPending = new ArrayDeque<>();
+        private final OutputStream mOut = new ControlOutputStream();
+        private ConnectionHandler mHandler;
+
+        private boolean mBusy = true; // the greeting runs first
+        private boolean mEof = false;
+        private boolean mWritable = false;
+        private volatile int mIdleTimeout;
+        private volatile long mLastActivity = System.currentTimeMillis();
+
+        Session(SocketChannel channel, SelectionKey key) {
+            mChannel = channel;
+            mKey = key;
+        }
+
+        OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        void setIdleTimeout(int millis) {
+            mIdleTimeout = millis;
+            mLastActivity = System.currentTimeMillis();
+        }
+
+        void start(int admission) {
+            mHandler = new ConnectionHandler(mMyFTP, mChannel.socket(), this);
+            mHandler.setAdmission(admission);
+            mMyFTP.sessionOpened(mHandler);
+            // waiting in the admission queue blocks, keep it off the command workers
+            final boolean queued = admission == Admission.QUEUED;
+            (queued ? mTransfers : mWorkers).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!mHandler.awaitAdmission()) {
+                            mHandler.close();
+                            return;
+                        }
+                        mHandler.greet();
+                        mHandler.flushReplies();
+                    } catch (Exception e) {
+                        mHandler.handleError(e);
+                        mHandler.close();
+                        return;
+                    }
+                    drain(queued);
+                }
+            });
+        }
+
+        /**
+         * Selector thread: pull bytes off the socket and cut them into command lines
+         */
+        void read() throws IOException {
+            int n;
+            try {
+                n = mChannel.read(mReadBuffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n == -1) {
+                mKey.cancel();
+                lineReceived(null);
+                return;
+            }
+            mReadBuffer.flip();
+            while (mReadBuffer.hasRemaining()) {
+                byte b = mReadBuffer.get();
+                if (b == 10 || b == 13) {
+                    lineReceived(copyLine());
+                } else {
+                    mLine[mLineLen++] = b;
+                    if (mLineLen == MAX_LINE) {
+                        lineReceived(copyLine());
+                    }
+                }
+            }
+            mReadBuffer.clear();
+        }
+
+        private byte[] copyLine() {
+            byte[] line = new byte[mLineLen];
+            System.arraycopy(mLine, 0, line, 0, mLineLen);
+            mLineLen = 0;
+            return line;
+        }
+
+        /**
+         * @param line a command line or null at end of stream
+         */
+        private void lineReceived(byte[] line) {
+            mLastActivity = System.currentTimeMillis();
+            synchronized (this) {
+                if (line == null) {
+                    mEof = true;
+                } else if (line.length > 0) {
+                    mPending.add(line);
+                    if (mPending.size() >= MAX_QUEUED_LINES && mKey.isValid()) {
+                        mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+                    }
+                } else {
+                    return;
+                }
+                if (mBusy) {
+                    return;
+                }
+                mBusy = true;
+            }
+            submitDrain(false);
+        }
+
+        /**
+         * Continue executing this session's lines on a worker or transfer thread
+         */
+        private void submitDrain(final boolean transfer) {
+            (transfer ? mTransfers : mWorkers).execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(transfer);
+                }
+            });
+        }
+
+        /**
+         * Worker or transfer thread: execute queued command lines in order, one at a time per
+         * session. A line that belongs in the other pool moves the rest of the session there.
+         *
+         * @param transfer true on a transfer thread
+         */
+        private void drain(boolean transfer) {
+            while (true) {
+                byte[] line;
+                boolean resumeReading;
+                boolean morePending;
+                boolean eof;
+                synchronized (this) {
+                    line = mPending.peek();
+                    if (line != null && isBlocking(line) != transfer) {
+                        submitDrain(!transfer); // mBusy stays set
+                        return;
+                    }
+                    line = mPending.poll();
+                    if (line == null) {
+                        mBusy = false;
+                    }
+                    eof = mEof;
+                    resumeReading = mPending.size() == MAX_QUEUED_LINES - 1;
+                    morePending = !mPending.isEmpty();
+                }
+                if (line == null) {
+                    if (eof) {
+                        mHandler.close();
+                    }
+                    return;
+                }
+                if (resumeReading) {
+                    onSelectorThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mKey.isValid()) {
+                                mKey.interestOps(mKey.interestOps() | SelectionKey.OP_READ);
+                            }
+                        }
+                    });
+                }
+                try {
+                    mHandler.processLine(line, 0, line.length);
+                    if (!morePending) {
+                        mHandler.flushReplies();
+                    }
+                } catch (Exception e) {
+                    mHandler.handleError(e);
+                    mHandler.close();
+                    return;
+                }
+                if (mHandler.isControlClosed()) {
+                    mHandler.close();
+                    return;
+                }
+                mLastActivity = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Selector thread: drop the session if it has been silent for too long
+         */
+        void checkTimeout(long now) {
+            synchronized (this) {
+                if (mBusy || now - mLastActivity < mIdleTimeout) {
+                    return;
+                }
+                mBusy = true;
+            }
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mHandler.handleError(new SocketTimeoutException("Control connection idle for " + mIdleTimeout + " ms"));
+                    mHandler.close();
+                }
+            });
+        }
+
+        /**
+         * Selector thread: the socket accepts data again
+         */
+        void writable() {
+            synchronized (mOut) {
+                mWritable = true;
+                mOut.notifyAll();
+            }
+        }
+
+        /**
+         * Writes replies straight to the non blocking channel. If the client does not read,
+         * the worker waits for OP_WRITE just like a blocking socket would.
+         */
+        private class ControlOutputStream extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (this) {
+                    ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                    while (buf.hasRemaining()) {
+                        if (!mChannel.isOpen()) {
+                            throw new ClosedChannelException();
+                        }
+                        if (mChannel.write(buf) == 0) {
+                            awaitWritable();
+                        }
+                    }
+                }
+            }
+
+            private void awaitWritable() throws IOException {
+                mWritable = false;
+                onSelectorThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mKey.isValid()) {
+                            mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+                        }
+                    }
+                });
+                long deadline = System.currentTimeMillis() + Math.max(mIdleTimeout, 1000);
+                while (!mWritable) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException("Client is not reading replies");
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package tibbeftp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out the passive data ports of the range shared by all sessions. Leased ports are tracked
+ * in an atomic bitmap, sessions that find the range exhausted wait in a fair queue until a port
+ * is returned instead of sleeping and rescanning.
+ *
+ * @author jesper
+ */
+public class PassivePortAllocator {
+    private final int mMin;
+    private final int mSize;
+    private final AtomicLongArray mLeased;
+    private final Semaphore mFree;
+    private final AtomicInteger mCursor = new AtomicInteger();
+    private final AtomicLong mWaits = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+
+    public PassivePortAllocator(int min, int max) {
+        mMin = min;
+        mSize = max - min + 1;
+        mLeased = new AtomicLongArray((mSize + 63) / 64);
+        mFree = new Semaphore(mSize, true);
+    }
+
+    /**
+     * Opens a server socket (backlog 1) through a channel, so that transfers can use FileChannel
+     *
+     * @param port the port to listen on, 0 for any free port
+     */
+    static ServerSocket openDataServerSocket(int port) throws IOException {
+        ServerSocket ss = ServerSocketChannel.open().socket();
+        try {
+            ss.bind(new InetSocketAddress(port), 1);
+        } catch (IOException e) {
+            ss.close();
+            throw e;
+        }
+        return ss;
+    }
+
+    /**
+     * Lease a port from the range and listen on it
+     *
+     * @param timeoutMillis how long to wait if every port is leased
+     * @return a bound server socket, or null if no port could be had in time
+     */
+    public ServerSocket lease(long timeoutMillis) throws InterruptedException {
+        // The untimed tryAcquire() would barge ahead of the sessions already waiting
+        if (!mFree.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+            mWaits.incrementAndGet();
+            if (!mFree.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                mTimeouts.incrementAndGet();
+                return null;
+            }
+        }
+        // Holding a permit guarantees a clear bit, but a port may be taken by some other process
+        int start = (mCursor.getAndIncrement() & Integer.MAX_VALUE) % mSize;
+        for (int i = 0; i < mSize; i++) {
+            int index = (start + i) % mSize;
+            if (!setBit(index)) {
+                continue;
+            }
+            try {
+                return openDataServerSocket(mMin + index);
+            } catch (IOException e) {
+                clearBit(index); // port probably in use outside this server, try the next
+            }
+        }
+        mFree.release();
+        return null;
+    }
+
+    /**
+     * Close a server socket returned by lease() and give its port back
+     */
+    public void release(ServerSocket ss) {
+        int port = ss.getLocalPort();
+        try {
+            ss.close();
+        } catch (IOException e) {
+        }
+        int index = port - mMin;
+        if (index >= 0 && index < mSize && clearBit(index)) {
+            mFree.release();
+        }
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return number of ports currently leased
+     */
+    public int getLeased() {
+        return mSize - mFree.availablePermits();
+    }
+
+    /**
+     * @return number of sessions waiting for a port
+     */
+    public int getWaiting() {
+        return mFree.getQueueLength();
+    }
+
+    public String oneLineInfo() {
+        return (mSize - mFree.availablePermits()) + "/" + mSize + " leased, waiting: " + mFree.getQueueLength()
+                + ", waits: " + mWaits + ", timeouts: " + mTimeouts;
+    }
+
+    /**
+     * @return true if the bit was clear and is now set by us
+     */
+    private boolean setBit(int index) {
+        int word = index >> 6;
+        long mask = 1L << (index & 63);
+        while (true) {
+            long old = mLeased.get(word);
+            if ((old & mask) != 0) {
+                return false;
+            }
+            if (mLeased.compareAndSet(word, old, old | mask)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if the bit was set and is now cleared by us
+     */
+    private boolean clearBit(int index) {
+        int word = index >> 6;
+        long mask = 1L << (index & 63);
+        while (true) {
+            long old = mLeased.get(word);
+            if ((old & mask) == 0) {
+                return false;
+            }
+            if (mLeased.compareAndSet(word, old, old & ~mask)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package tibbeftp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Passive mode where every port of the range is a listener shared by all sessions, instead of
+ * one server socket per PASV. A session that sends PASV gets a ticket on one of the listeners,
+ * incoming data connections are given to the oldest ticket from the same client IP (or the
+ * oldest ticket of all when PASV_PROMISCUOUS is set).
+ * <p>
+ * Tickets are spread so that a client has at most one pending ticket per port when the range
+ * allows it. Otherwise a client with several sessions waiting on the same port gets its data
+ * connections in the order the PASV commands were issued.
+ *
+ * @author jesper
+ */
+public class SharedPassiveListener {
+    private static final int ACCEPT_RETRY_MILLIS = 100; // after a failed accept (out of file descriptors)
+
+    private final Listener[] mListeners;
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final AtomicLong mTicketSequence = new AtomicLong();
+    private final AtomicLong mAccepted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+
+    public SharedPassiveListener(int min, int max) throws IOException {
+        mListeners = new Listener[max - min + 1];
+        for (int i = 0; i < mListeners.length; i++) {
+            mListeners[i] = new Listener(min + i);
+        }
+        for (Listener l : mListeners) {
+            l.start();
+        }
+    }
+
+    /**
+     * Wait for a data connection from client on one of the shared ports
+     */
+    public Ticket newTicket(InetAddress client) {
+        int start = (mNext.getAndIncrement() & Integer.MAX_VALUE) % mListeners.length;
+        Listener l = mListeners[start];
+        // Prefer a port where this client has nothing pending, then there is no doubt which session a connection is for
+        for (int i = 0; i < mListeners.length; i++) {
+            Listener candidate = mListeners[(start + i) % mListeners.length];
+            if (!candidate.isWaitingFor(client)) {
+                l = candidate;
+                break;
+            }
+        }
+        Ticket t = new Ticket(l, client, mTicketSequence.incrementAndGet());
+        l.add(t);
+        return t;
+    }
+
+    public int getPortCount() {
+        return mListeners.length;
+    }
+
+    /**
+     * @return number of sessions waiting for their data connection
+     */
+    public int getWaiting() {
+        int waiting = 0;
+        for (Listener l : mListeners) {
+            waiting += l.waiting();
+        }
+        return waiting;
+    }
+
+    public String oneLineInfo() {
+        return mListeners.length + " shared ports, waiting: " + getWaiting() + ", accepted: " + mAccepted + ", rejected: " + mRejected;
+    }
+
+    /**
+     * One session waiting for its data connection. Waits on a lock rather than a monitor, so a
+     * session on a virtual thread doesn't pin its carrier for as long as PASV_TIMEOUT.
+     */
+    public static class Ticket {
+        private final Listener mListener;
+        private final InetAddress mClient;
+        private final long mSequence;
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mDone = mLock.newCondition();
+        private Socket mSocket = null;
+        private boolean mCancelled = false;
+
+        Ticket(Listener listener, InetAddress client, long sequence) {
+            mListener = listener;
+            mClient = client;
+            mSequence = sequence;
+        }
+
+        public int getPort() {
+            return mListener.mPort;
+        }
+
+        /**
+         * @return the data connection
+         * @throws SocketTimeoutException if nothing connected within timeoutMillis
+         */
+        public Socket await(long timeoutMillis) throws IOException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            mLock.lock();
+            try {
+                while (mSocket == null) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0 || mCancelled) {
+                        break;
+                    }
+                    try {
+                        mDone.await(wait, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                if (mSocket != null) {
+                    Socket s = mSocket;
+                    mSocket = null;
+                    mCancelled = true;
+                    return s;
+                }
+            } finally {
+                mLock.unlock();
+            }
+            cancel();
+            throw new SocketTimeoutException("No data connection on shared port " + getPort());
+        }
+
+        /**
+         * Stop waiting, closes a connection that was handed over but not picked up
+         */
+        public void cancel() {
+            mListener.remove(this);
+            Socket s;
+            mLock.lock();
+            try {
+                mCancelled = true;
+                s = mSocket;
+                mSocket = null;
+                mDone.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        /**
+         * @return false if the ticket was cancelled in the meantime
+         */
+        private boolean complete(Socket s) {
+            mLock.lock();
+            try {
+                if (mCancelled) {
+                    return false;
+                }
+                mSocket = s;
+                mDone.signalAll();
+                return true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * One shared port and the tickets waiting on it
+     */
+    private class Listener extends Thread {
+        private final int mPort;
+        private final ServerSocketChannel mChannel;
+        private final Map<InetAddress, ArrayDeque<Ticket>> mWaiting = new HashMap<>();
+        private int mWaitingCount = 0;
+
+        Listener(int port) throws IOException {
+            super("SharedPassive_" + port);
+            setDaemon(true);
+            mPort = port;
+            mChannel = ServerSocketChannel.open();
+            mChannel.socket().setReuseAddress(true);
+            mChannel.socket().bind(new InetSocketAddress(port), 1024);
+        }
+
+        synchronized void add(Ticket t) {
+            ArrayDeque<Ticket> q = mWaiting.get(t.mClient);
+            if (q == null) {
+                q = new ArrayDeque<>();
+                mWaiting.put(t.mClient, q);
+            }
+            q.add(t);
+            mWaitingCount++;
+        }
+
+        synchronized void remove(Ticket t) {
+            ArrayDeque<Ticket> q = mWaiting.get(t.mClient);
+            if (q != null && q.remove(t)) {
+                mWaitingCount--;
+                if (q.isEmpty()) {
+                    mWaiting.remove(t.mClient);
+                }
+            }
+        }
+
+        synchronized boolean isWaitingFor(InetAddress client) {
+            return mWaiting.containsKey(client);
+        }
+
+        synchronized int waiting() {
+            return mWaitingCount;
+        }
+
+        /**
+         * @return the ticket to give a connection from client to, removed from the queue
+         */
+        private synchronized Ticket take(InetAddress client) {
+            ArrayDeque<Ticket> q = mWaiting.get(client);
+            if (q == null && MyFTP.PASV_PROMISCUOUS) {
+                // Oldest ticket from any client
+                for (ArrayDeque<Ticket> candidate : mWaiting.values()) {
+                    if (q == null || candidate.peek().mSequence < q.peek().mSequence) {
+                        q = candidate;
+                    }
+                }
+            }
+            if (q == null) {
+                return null;
+            }
+            Ticket t = q.poll();
+            mWaitingCount--;
+            if (q.isEmpty()) {
+                Iterator<ArrayDeque<Ticket>> it = mWaiting.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next() == q) {
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+            return t;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                SocketChannel sc;
+                try {
+                    sc = mChannel.accept();
+                } catch (ClosedChannelException e) {
+                    return; // shut down
+                } catch (IOException e) {
+                    if (!mChannel.isOpen()) {
+                        return;
+                    }
+                    // e.g. out of file descriptors, the port must keep working once it passes
+                    Logger.logToConsole("Accept failed on shared port " + mPort + ": " + e);
+                    try {
+                        Thread.sleep(ACCEPT_RETRY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    continue;
+                }
+                Socket s = sc.socket();
+                boolean handedOver = false;
+                Ticket t;
+                while (!handedOver && (t = take(s.getInetAddress())) != null) {
+                    handedOver = t.complete(s);
+                }
+                if (handedOver) {
+                    mAccepted.incrementAndGet();
+                } else {
+                    mRejected.incrementAndGet();
+                    Logger.logToConsole("Illegal data port access from IP " + s.getInetAddress() + " on shared port " + mPort + " (no PASV pending)");
+                    try {
+                        s.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+    }
+}
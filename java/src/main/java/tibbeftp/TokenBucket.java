@@ -0,0 +1,52 @@
+package tibbeftp;
+
+/**
+ * A rate limit shared by the transfers that draw from it. Instead of counting tokens, the bucket
+ * keeps the time at which everything handed out so far has been paid for at the current rate. A
+ * caller reserves its bytes and sleeps until its turn, so transfers waiting on the same bucket
+ * take turns in the order they asked and share the rate evenly. Bandwidth a transfer leaves
+ * unused is simply not reserved, and the others get it.
+ *
+ * @author jesper
+ */
+public class TokenBucket {
+    /**
+     * After being idle, this much time (at the full rate) may be sent at once
+     */
+    private static final long BURST_NANOS = 100 * 1000000L;
+
+    private long mBytesPerSecond = 0;
+    private long mPaidUntil = System.nanoTime();
+
+    /**
+     * @param kBps the rate in KB/s, 0 for no limit
+     */
+    public synchronized void setRate(long kBps) {
+        mBytesPerSecond = kBps * 1024;
+    }
+
+    /**
+     * @return the rate in KB/s, 0 for no limit
+     */
+    public synchronized long getRate() {
+        return mBytesPerSecond / 1024;
+    }
+
+    /**
+     * Reserve bytes at the current rate
+     *
+     * @return nanoseconds the caller must wait before sending them
+     */
+    public synchronized long reserve(long bytes) {
+        if (mBytesPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        if (mPaidUntil < now - BURST_NANOS) {
+            mPaidUntil = now - BURST_NANOS; // no credit for more than the burst while idle
+        }
+        long wait = Math.max(0, mPaidUntil - now);
+        mPaidUntil += bytes * 1000000000L / mBytesPerSecond;
+        return wait;
+    }
+}
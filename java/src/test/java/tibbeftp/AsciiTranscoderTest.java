@@ -0,0 +1,79 @@
+package tibbeftp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+/**
+ * TYPE A line endings, also when a CR and its LF arrive in different buffers
+ *
+ * @author jesper
+ */
+public class AsciiTranscoderTest {
+
+    /**
+     * @return the chunks converted one buffer at a time, like a transfer does
+     */
+    private static String toNetwork(AsciiTranscoder ascii, String... chunks) {
+        StringBuilder ret = new StringBuilder();
+        for (String chunk : chunks) {
+            byte[] in = chunk.getBytes(StandardCharsets.ISO_8859_1);
+            ByteBuffer out = ByteBuffer.allocate(2 * in.length);
+            ascii.toNetwork(ByteBuffer.wrap(in), out);
+            ret.append(new String(out.array(), 0, out.position(), StandardCharsets.ISO_8859_1));
+        }
+        return ret.toString();
+    }
+
+    private static String toLocal(AsciiTranscoder ascii, String... chunks) {
+        StringBuilder ret = new StringBuilder();
+        for (String chunk : chunks) {
+            byte[] in = chunk.getBytes(StandardCharsets.ISO_8859_1);
+            ByteBuffer out = ByteBuffer.allocate(in.length + 1);
+            ascii.toLocal(ByteBuffer.wrap(in), out);
+            ret.append(new String(out.array(), 0, out.position(), StandardCharsets.ISO_8859_1));
+        }
+        ByteBuffer out = ByteBuffer.allocate(1);
+        ascii.finish(out);
+        ret.append(new String(out.array(), 0, out.position(), StandardCharsets.ISO_8859_1));
+        return ret.toString();
+    }
+
+    @Test
+    public void lfBecomesCrlf() {
+        assertEquals("a\r\nb\r\n\r\nc", toNetwork(new AsciiTranscoder(), "a\nb\n\nc"));
+    }
+
+    @Test
+    public void crlfInFileIsLeftAlone() {
+        assertEquals("a\r\nb\r\n", toNetwork(new AsciiTranscoder(), "a\r\nb\n"));
+    }
+
+    @Test
+    public void crlfInFileSplitAcrossBuffers() {
+        assertEquals("a\r\nb\r\n", toNetwork(new AsciiTranscoder(), "a\r", "\nb", "\n"));
+    }
+
+    @Test
+    public void crlfBecomesLf() {
+        assertEquals("a\nb\n", toLocal(new AsciiTranscoder(), "a\r\nb\r\n"));
+    }
+
+    @Test
+    public void crlfSplitAcrossBuffers() {
+        assertEquals("a\nb\n", toLocal(new AsciiTranscoder(), "a\r", "\nb\r", "", "\n"));
+    }
+
+    @Test
+    public void loneCrIsKept() {
+        assertEquals("a\rb\r\n", toLocal(new AsciiTranscoder(), "a\rb\r\r\n"));
+        assertEquals("a\rb", toLocal(new AsciiTranscoder(), "a\r", "b"));
+    }
+
+    @Test
+    public void crAtTheEndIsWrittenByFinish() {
+        assertEquals("a\r", toLocal(new AsciiTranscoder(), "a\r"));
+    }
+}
@@ -0,0 +1,66 @@
+package tibbeftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+/**
+ * Recognizing verbs in the received bytes
+ *
+ * @author jesper
+ */
+public class CommandTest {
+
+    private static Command lookup(String verb) {
+        byte[] b = verb.getBytes(StandardCharsets.ISO_8859_1);
+        return Command.lookup(b, 0, b.length);
+    }
+
+    @Test
+    public void everyVerbIsFound() {
+        for (Command c : Command.values()) {
+            assertEquals(c, lookup(c.name()));
+        }
+    }
+
+    @Test
+    public void caseInsensitive() {
+        assertEquals(Command.NOOP, lookup("noop"));
+        assertEquals(Command.RETR, lookup("ReTr"));
+        assertEquals(Command.XSHA256, lookup("xsha256"));
+    }
+
+    @Test
+    public void verbsWithDigits() {
+        assertEquals(Command.XSHA1, lookup("XSHA1"));
+        assertEquals(Command.XSHA256, lookup("XSHA256"));
+        assertNull(lookup("XSHA2"));
+    }
+
+    @Test
+    public void unknownVerbs() {
+        assertNull(lookup(""));
+        assertNull(lookup("BOGUS"));
+        assertNull(lookup("RET"));
+        assertNull(lookup("RETRR"));
+        assertNull(lookup("RE-TR"));
+        assertNull(lookup("RETR "));
+        assertNull(lookup("r\u00e9tr"));
+    }
+
+    @Test
+    public void longerThanEightCharacters() {
+        assertNull(lookup("XSHA2560"));
+        assertNull(lookup("NOOPNOOPNOOP"));
+        assertNull(lookup("AAAAAAAAXSHA256"));
+    }
+
+    @Test
+    public void verbInsideALine() {
+        byte[] line = "  STOR file.bin".getBytes(StandardCharsets.ISO_8859_1);
+        assertEquals(Command.STOR, Command.lookup(line, 2, 4));
+        assertNull(Command.lookup(line, 2, 5));
+    }
+}
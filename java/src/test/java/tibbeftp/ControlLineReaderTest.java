@@ -0,0 +1,106 @@
+package tibbeftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Splitting the control connection into lines, however the bytes arrive
+ *
+ * @author jesper
+ */
+public class ControlLineReaderTest {
+
+    /**
+     * Hands out at most chunk bytes per read(), like a slow network
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream mIn;
+        private final int mChunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            mIn = new ByteArrayInputStream(data);
+            mChunk = chunk;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return mIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return mIn.read(b, off, Math.min(len, mChunk));
+        }
+    }
+
+    private static List<String> readAll(ControlLineReader reader) throws IOException {
+        List<String> lines = new ArrayList<>();
+        int len;
+        while ((len = reader.readLine()) != -1) {
+            lines.add(new String(reader.getBuffer(), reader.getLineStart(), len, StandardCharsets.ISO_8859_1));
+        }
+        return lines;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void severalLinesInOneRead() throws IOException {
+        ControlLineReader reader = new ControlLineReader(new ByteArrayInputStream(bytes("USER u\r\nPASS p\r\nPWD\r\n")));
+        // CR and LF each end a line, so CRLF leaves an empty one (processLine ignores it)
+        assertEquals(Arrays.asList("USER u", "", "PASS p", "", "PWD", ""), readAll(reader));
+    }
+
+    @Test
+    public void lineSplitAcrossReads() throws IOException {
+        ControlLineReader reader = new ControlLineReader(new ChunkedInputStream(bytes("RETR some/file.bin\nNOOP\n"), 3));
+        assertEquals(Arrays.asList("RETR some/file.bin", "NOOP"), readAll(reader));
+    }
+
+    @Test
+    public void hasBufferedLine() throws IOException {
+        ControlLineReader reader = new ControlLineReader(new ChunkedInputStream(bytes("NOOP\nSYST\nPW"), 100));
+        assertFalse(reader.hasBufferedLine());
+        assertEquals(4, reader.readLine());
+        assertTrue(reader.hasBufferedLine());
+        assertEquals(4, reader.readLine());
+        assertFalse(reader.hasBufferedLine()); // only a partial line left
+    }
+
+    @Test
+    public void overLongLineIsCut() throws IOException {
+        char[] arg = new char[ControlLineReader.MAX_LINE + 100];
+        Arrays.fill(arg, 'x');
+        String line = "STOR " + new String(arg);
+        ControlLineReader reader = new ControlLineReader(new ChunkedInputStream(bytes(line + "\nNOOP\n"), 700));
+        List<String> lines = readAll(reader);
+        assertEquals(3, lines.size());
+        assertEquals(line.substring(0, ControlLineReader.MAX_LINE), lines.get(0));
+        assertEquals(line.substring(ControlLineReader.MAX_LINE), lines.get(1));
+        assertEquals("NOOP", lines.get(2));
+    }
+
+    @Test
+    public void manyLinesLargerThanTheBuffer() throws IOException {
+        StringBuilder sent = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            expected.add("SIZE file" + i + ".bin");
+            sent.append("SIZE file").append(i).append(".bin\n");
+        }
+        ControlLineReader reader = new ControlLineReader(new ChunkedInputStream(bytes(sent.toString()), 1000));
+        assertEquals(expected, readAll(reader));
+    }
+}
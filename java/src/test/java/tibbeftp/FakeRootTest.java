@@ -0,0 +1,83 @@
+package tibbeftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The jail of FakeRoot, also when another session changes the tree between lookups
+ *
+ * @author jesper
+ */
+public class FakeRootTest {
+    private Path mBase;
+    private File mRoot;
+    private File mOutside;
+
+    @Before
+    public void setup() throws IOException {
+        mBase = Files.createTempDirectory("tibbeftp-fakeroot");
+        mRoot = Files.createDirectories(mBase.resolve("home/u")).toFile();
+        mOutside = Files.createDirectories(mBase.resolve("secret")).toFile();
+        Files.write(mOutside.toPath().resolve("f.txt"), "secret".getBytes());
+        Files.createDirectories(mRoot.toPath().resolve("d"));
+        Files.write(mRoot.toPath().resolve("d/f.txt"), "public".getBytes());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        delete(mBase.toFile());
+    }
+
+    private static void delete(File f) throws IOException {
+        if (f.isDirectory() && !Files.isSymbolicLink(f.toPath())) {
+            for (File child : f.listFiles()) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(f.toPath());
+    }
+
+    @Test
+    public void staysInsideRoot() {
+        FakeRoot root = new FakeRoot(mRoot);
+        assertNotNull(root.getFile("d/f.txt"));
+        assertNotNull(root.getFile("/d/f.txt"));
+        assertNull(root.getFile("../../secret/f.txt"));
+        assertNull(root.getFile("/../uu"));
+    }
+
+    @Test
+    public void directorySwappedForSymlinkByAnotherSession() throws IOException {
+        FakeRoot session = new FakeRoot(mRoot);
+        FakeRoot other = new FakeRoot(mRoot);
+        assertNotNull(session.getFile("d/f.txt"));
+
+        // The other session moves d away, then a symlink to outside the root takes its place
+        File d = other.getFile("d");
+        assertEquals(true, d.renameTo(other.getFile("d.old")));
+        Files.createSymbolicLink(d.toPath(), mOutside.toPath());
+
+        assertNull(session.getFile("d/f.txt"));
+        assertNull(session.getFile("d"));
+    }
+
+    @Test
+    public void deniedPathAllowedOnceTheSymlinkIsGone() throws IOException {
+        Files.createSymbolicLink(mRoot.toPath().resolve("link"), mOutside.toPath());
+        FakeRoot session = new FakeRoot(mRoot);
+        assertNull(session.getFile("link/f.txt"));
+
+        Files.delete(mRoot.toPath().resolve("link"));
+        Files.createDirectories(mRoot.toPath().resolve("link"));
+        assertNotNull(session.getFile("link/f.txt"));
+    }
+}
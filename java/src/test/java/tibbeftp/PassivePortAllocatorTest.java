@@ -0,0 +1,105 @@
+package tibbeftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The bitmap of leased passive ports and the queue for a free one
+ *
+ * @author jesper
+ */
+public class PassivePortAllocatorTest {
+    // More than 64 ports, so the bitmap needs two words
+    private static final int MIN = 39400;
+    private static final int MAX = 39469;
+
+    private final PassivePortAllocator mPorts = new PassivePortAllocator(MIN, MAX);
+    private final List<ServerSocket> mLeased = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ServerSocket ss : mLeased) {
+            mPorts.release(ss);
+        }
+    }
+
+    /**
+     * @return how many ports could be leased before the range was exhausted
+     */
+    private int leaseAll() throws InterruptedException {
+        ServerSocket ss;
+        while ((ss = mPorts.lease(0)) != null) {
+            mLeased.add(ss);
+        }
+        return mLeased.size();
+    }
+
+    @Test
+    public void leasesEveryPortOnce() throws InterruptedException {
+        // A port in use by another process is skipped, so allow for a few
+        int leased = leaseAll();
+        assertTrue(leased > MAX - MIN - 5);
+        Set<Integer> ports = new HashSet<>();
+        for (ServerSocket ss : mLeased) {
+            assertTrue(ss.getLocalPort() >= MIN && ss.getLocalPort() <= MAX);
+            assertTrue(ports.add(ss.getLocalPort()));
+        }
+        assertEquals(leased, mPorts.getLeased());
+    }
+
+    @Test
+    public void releasedPortIsLeasedAgain() throws InterruptedException {
+        leaseAll();
+        assertNull(mPorts.lease(0));
+        ServerSocket ss = mLeased.remove(0);
+        int port = ss.getLocalPort();
+        mPorts.release(ss);
+        ServerSocket again = mPorts.lease(0);
+        assertNotNull(again);
+        mLeased.add(again);
+        assertEquals(port, again.getLocalPort());
+    }
+
+    @Test
+    public void releaseTwiceCountsOnce() throws InterruptedException {
+        ServerSocket ss = mPorts.lease(0);
+        assertEquals(1, mPorts.getLeased());
+        mPorts.release(ss);
+        mPorts.release(ss);
+        assertEquals(0, mPorts.getLeased());
+    }
+
+    @Test
+    public void waitingSessionGetsTheFreedPortFirst() throws InterruptedException {
+        leaseAll();
+        final ServerSocket[] waited = new ServerSocket[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    waited[0] = mPorts.lease(5000);
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        waiter.start();
+        while (mPorts.getWaiting() == 0) {
+            Thread.sleep(1);
+        }
+        mPorts.release(mLeased.remove(0));
+        assertNull(mPorts.lease(0)); // doesn't barge ahead of the waiting session
+        waiter.join();
+        assertNotNull(waited[0]);
+        mLeased.add(waited[0]);
+    }
+}
@@ -0,0 +1,55 @@
+package tibbeftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Reservations of a rate limit
+ *
+ * @author jesper
+ */
+public class TokenBucketTest {
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void unlimitedNeverWaits() {
+        TokenBucket bucket = new TokenBucket();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, bucket.reserve(1024 * 1024));
+        }
+    }
+
+    @Test
+    public void waitsForWhatWasReservedBefore() {
+        TokenBucket bucket = new TokenBucket();
+        bucket.setRate(100); // 100 KB/s
+        assertEquals(0, bucket.reserve(100 * 1024)); // paid for one second ahead
+        long wait = bucket.reserve(50 * 1024);
+        assertTrue("waited " + wait, wait > SECOND * 9 / 10 && wait <= SECOND);
+        wait = bucket.reserve(1);
+        assertTrue("waited " + wait, wait > SECOND * 14 / 10 && wait <= SECOND * 15 / 10);
+    }
+
+    @Test
+    public void idleTimeGivesOnlyABurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket();
+        bucket.setRate(1); // 1 KB/s
+        Thread.sleep(300);
+        // 100 ms of credit at most, so a whole KB still has to wait for most of a second
+        assertEquals(0, bucket.reserve(1024));
+        long wait = bucket.reserve(1);
+        assertTrue("waited " + wait, wait > SECOND * 8 / 10 && wait <= SECOND * 9 / 10);
+    }
+
+    @Test
+    public void rateCanChange() {
+        TokenBucket bucket = new TokenBucket();
+        bucket.setRate(10);
+        assertEquals(10, bucket.getRate());
+        bucket.setRate(0);
+        assertEquals(0, bucket.getRate());
+        assertEquals(0, bucket.reserve(1024 * 1024));
+    }
+}